@@ -0,0 +1,109 @@
+package net.proselyte.webfluxsecurity.repository;
+
+import io.r2dbc.spi.Row;
+import io.r2dbc.spi.RowMetadata;
+import net.proselyte.webfluxsecurity.entity.UserCredentials;
+import net.proselyte.webfluxsecurity.entity.UserEntity;
+import net.proselyte.webfluxsecurity.entity.UserStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.data.r2dbc.convert.MappingR2dbcConverter;
+import org.springframework.data.r2dbc.mapping.R2dbcMappingContext;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор строки результата в объект: вся строка users в UserEntity (как было
+ * в findByUsername и findById) против проекций UserCredentials (логин)
+ * и UserStatus (проверка токена).
+ * <p>
+ * Строка уже в памяти - сравнивается только маппинг; меньше столбцов - меньше
+ * значений декодирует драйвер и меньше байт приходит по сети (имена по 64 символа,
+ * две даты). Смотреть на gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UserRowMappingBenchmark {
+
+    private MappingR2dbcConverter converter;
+    private Row userRow;
+    private Row credentialsRow;
+    private Row statusRow;
+
+    @Setup
+    public void setUp() {
+        R2dbcMappingContext mappingContext = new R2dbcMappingContext();
+        converter = new MappingR2dbcConverter(mappingContext);
+
+        Map<String, Object> user = new HashMap<>();
+        user.put("id", 1L);
+        user.put("username", "proselyte");
+        user.put("password", "$pbkdf2-sha512$i=210000,l=256$c2FsdHNhbHRzYWx0c2FsdA==$"
+                + "aGFzaGhhc2hoYXNoaGFzaGhhc2hoYXNoaGFzaGhhc2hoYXNoaGFzaA==");
+        user.put("role", "USER");
+        user.put("enabled", true);
+        Map<String, Object> credentials = new HashMap<>(user);
+        Map<String, Object> status = new HashMap<>();
+        status.put("id", 1L);
+        status.put("role", "USER");
+        status.put("enabled", true);
+        user.put("first_name", "Eugene");
+        user.put("last_name", "Suleimanov");
+        user.put("created_at", LocalDateTime.now());
+        user.put("updated_at", LocalDateTime.now());
+
+        userRow = new MapRow(user);
+        credentialsRow = new MapRow(credentials);
+        statusRow = new MapRow(status);
+
+        //модели сущностей строятся при первом чтении - не в замере
+        converter.read(UserEntity.class, userRow);
+        converter.read(UserCredentials.class, credentialsRow);
+        converter.read(UserStatus.class, statusRow);
+    }
+
+    @Benchmark
+    public UserEntity fullRow() {
+        return converter.read(UserEntity.class, userRow);
+    }
+
+    @Benchmark
+    public UserCredentials credentials() {
+        return converter.read(UserCredentials.class, credentialsRow);
+    }
+
+    @Benchmark
+    public UserStatus status() {
+        return converter.read(UserStatus.class, statusRow);
+    }
+
+    /**
+     * Строка результата поверх мапы "столбец - значение".
+     */
+    private record MapRow(Map<String, Object> columns) implements Row {
+
+        @Override
+        public <T> T get(int index, Class<T> type) {
+            throw new UnsupportedOperationException("Columns are read by name");
+        }
+
+        @Override
+        public <T> T get(String name, Class<T> type) {
+            return type.cast(columns.get(name));
+        }
+
+        @Override
+        public RowMetadata getMetadata() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
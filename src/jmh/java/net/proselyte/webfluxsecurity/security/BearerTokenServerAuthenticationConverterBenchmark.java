@@ -0,0 +1,57 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.proselyte.webfluxsecurity.metrics.SecurityMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.security.core.Authentication;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Весь путь от заголовка Authorization до Authentication,
+ * с кэшем проверенных токенов и без него, через HmacTokenCodec и через jjwt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BearerTokenServerAuthenticationConverterBenchmark {
+
+    @Param({"false", "true"})
+    private boolean tokenCache;
+
+    @Param({"false", "true"})
+    private boolean fastPath;
+
+    private BearerTokenServerAuthenticationConverter converter;
+    private MockServerWebExchange exchange;
+
+    @Setup
+    public void setUp() {
+        Clock clock = Clock.systemUTC();
+        converter = new BearerTokenServerAuthenticationConverter(
+                new JwtHandler(BenchmarkTokens.SECRET, clock),
+                new HmacTokenCodec(fastPath ? JwtKeyRing.hmac(BenchmarkTokens.SECRET).getHmacKey() : null, clock),
+                new VerifiedTokenCache(tokenCache, 10_000, clock),
+                new RevocationIndex(Duration.ofMinutes(1), clock),
+                new SecurityMetrics(new SimpleMeterRegistry()));
+        exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/api/v1/auth/info")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + BenchmarkTokens.token()));
+    }
+
+    @Benchmark
+    public Authentication convert() {
+        return converter.convert(exchange).block();
+    }
+}
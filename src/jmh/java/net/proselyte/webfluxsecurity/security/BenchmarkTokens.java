@@ -0,0 +1,68 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import net.proselyte.webfluxsecurity.config.JwtSigningProperties;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Base64;
+import java.util.List;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Общие для бенчмарков секрет и токен такого же вида, какой выдает SecurityService.
+ */
+final class BenchmarkTokens {
+
+    static final String SECRET = "b5f59337a612a2a7dc07328f3e7d1a04722967c7f06df20a499a7d3f91ff2a7e";
+
+    private BenchmarkTokens() {
+    }
+
+    /**
+     * Настройки подписи для бенчмарка. Для ES256 - ключ P-256, созданный на время бенчмарка
+     * (без ключей в настройках JwtKeyRing не стартует).
+     *
+     * @param algorithm HS256 или ES256
+     * @return настройки jwt.signing
+     */
+    static JwtSigningProperties signing(SignatureAlgorithm algorithm) {
+        JwtSigningProperties signing = new JwtSigningProperties();
+        signing.setAlgorithm(algorithm);
+        if (algorithm == SignatureAlgorithm.ES256) {
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+                generator.initialize(new ECGenParameterSpec("secp256r1"));
+                KeyPair keyPair = generator.generateKeyPair();
+                JwtSigningProperties.Key key = new JwtSigningProperties.Key();
+                key.setKid("bench");
+                key.setPrivateKey(Base64.getEncoder().encodeToString(keyPair.getPrivate().getEncoded()));
+                key.setPublicKey(Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()));
+                signing.setKeys(List.of(key));
+                signing.setActiveKid("bench");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return signing;
+    }
+
+    static String token() {
+        long now = System.currentTimeMillis();
+        return Jwts.builder()
+                .setClaims(Map.of("role", "USER", "username", "proselyte"))
+                .setIssuer("proselyte")
+                .setSubject("1")
+                .setIssuedAt(new Date(now))
+                .setId(UUID.randomUUID().toString())
+                .setExpiration(new Date(now + TimeUnit.HOURS.toMillis(1)))
+                .signWith(SignatureAlgorithm.HS256, Base64.getEncoder().encodeToString(SECRET.getBytes()))
+                .compact();
+    }
+}
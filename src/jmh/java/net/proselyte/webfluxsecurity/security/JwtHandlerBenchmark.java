@@ -0,0 +1,50 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение проверки токена: как было (новый парсер и Base64 секрета на каждый вызов)
+ * и через общий JwtHandler с заранее посчитанным ключом.
+ * Смотреть на gc.alloc.rate.norm - байты на одну проверку.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JwtHandlerBenchmark {
+
+    private JwtHandler jwtHandler;
+    private String token;
+
+    @Setup
+    public void setUp() {
+        jwtHandler = new JwtHandler(BenchmarkTokens.SECRET);
+        token = BenchmarkTokens.token();
+    }
+
+    /**
+     * Старый вариант JwtHandler.getClaimsFromToken.
+     */
+    @Benchmark
+    public Claims parserPerCall() {
+        return Jwts.parser()
+                .setSigningKey(Base64.getEncoder().encodeToString(BenchmarkTokens.SECRET.getBytes()))
+                .parseClaimsJws(token)
+                .getBody();
+    }
+
+    @Benchmark
+    public JwtHandler.VerificationResult check() {
+        return jwtHandler.check(token).block();
+    }
+}
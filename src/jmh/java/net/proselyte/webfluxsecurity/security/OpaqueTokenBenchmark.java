@@ -0,0 +1,88 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.proselyte.webfluxsecurity.config.JwtSigningProperties;
+import net.proselyte.webfluxsecurity.entity.UserRole;
+import net.proselyte.webfluxsecurity.metrics.SecurityMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.web.server.authentication.ServerAuthenticationConverter;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Режим непрозрачных токенов против JWT: заголовок Authorization до Authentication
+ * при параллельных запросах (Threads.MAX), без кэша проверенных токенов.
+ * - jwtHs256 - быстрый путь HmacTokenCodec;
+ * - jwtEs256 - проверка подписи ES256 в JwtHandler;
+ * - session - поиск в ShardedSessionRepository, заполненном sessions сессиями.
+ * Размер заголовка Authorization у каждого варианта - в README (режим непрозрачных токенов).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(Threads.MAX)
+public class OpaqueTokenBenchmark {
+
+    @Param({"jwtHs256", "jwtEs256", "session"})
+    private String path;
+
+    /**
+     * Сколько сессий в хранилище (для jwt не используется).
+     */
+    @Param({"100000"})
+    private int sessions;
+
+    private ServerAuthenticationConverter converter;
+    private MockServerWebExchange exchange;
+
+    @Setup
+    public void setUp() {
+        Clock clock = Clock.systemUTC();
+        SecurityMetrics metrics = new SecurityMetrics(new SimpleMeterRegistry());
+        String token;
+        if (path.equals("session")) {
+            ShardedSessionRepository repository =
+                    new ShardedSessionRepository(Duration.ofMinutes(30), sessions * 2, 64, clock);
+            OpaqueTokenService service = new OpaqueTokenService(repository);
+            for (long id = 1; id < sessions; id++) {
+                service.issue(id, "user" + id, UserRole.USER).block();
+            }
+            token = service.issue(0L, "proselyte", UserRole.USER).block().getToken();
+            converter = new OpaqueTokenServerAuthenticationConverter(service, metrics);
+        } else {
+            JwtSigningProperties signing = BenchmarkTokens.signing(
+                    path.equals("jwtEs256") ? SignatureAlgorithm.ES256 : SignatureAlgorithm.HS256);
+            JwtKeyRing keyRing = JwtKeyRing.from(signing, BenchmarkTokens.SECRET);
+            token = new TokenIssuer(keyRing, clock, "proselyte", 900, 1209600)
+                    .issueAccess(1L, "proselyte", UserRole.USER).getToken();
+            converter = new BearerTokenServerAuthenticationConverter(
+                    new JwtHandler(keyRing, clock),
+                    new HmacTokenCodec(keyRing.getHmacKey(), clock),
+                    new VerifiedTokenCache(false, 0, clock),
+                    new RevocationIndex(Duration.ofMinutes(1), clock),
+                    metrics);
+        }
+        exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/api/v1/auth/info")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token));
+    }
+
+    @Benchmark
+    public Authentication convert() {
+        return converter.convert(exchange).block();
+    }
+}
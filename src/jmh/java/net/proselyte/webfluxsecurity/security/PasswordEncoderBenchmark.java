@@ -0,0 +1,66 @@
+package net.proselyte.webfluxsecurity.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PBFDK2Encoder.encode/matches для разного числа итераций.
+ * Итерации фиксируем параметром, а не калибровкой, чтобы результаты
+ * были сравнимы между машинами.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PasswordEncoderBenchmark {
+
+    private static final String PASSWORD = "test";
+
+    @Param({"10000", "210000"})
+    private int iterations;
+
+    private PBFDK2Encoder encoder;
+    private String encodedPassword;
+    private String legacyEncodedPassword;
+
+    @Setup
+    public void setUp() {
+        encoder = new PBFDK2Encoder();
+        ReflectionTestUtils.setField(encoder, "secret", "FZK2DZ82odqS13e8aENggaMbb_fAkl-nJL4AEVBX43g");
+        ReflectionTestUtils.setField(encoder, "iteration", 64);
+        ReflectionTestUtils.setField(encoder, "keyLength", 256);
+        ReflectionTestUtils.setField(encoder, "targetLatency", Duration.ZERO);
+        ReflectionTestUtils.setField(encoder, "minIterations", iterations);
+        ReflectionTestUtils.setField(encoder, "maxIterations", iterations);
+        ReflectionTestUtils.setField(encoder, "upgradeThreshold", 0.8);
+        encoder.calibrate();
+
+        encodedPassword = encoder.encode(PASSWORD);
+        //старый формат: пароль "test", 64 итерации с общей солью
+        legacyEncodedPassword = "kkXcf8qq8QZCvnj6qnVRhJwAJsNNhocx7aEyHzocdX8=";
+    }
+
+    @Benchmark
+    public String encode() {
+        return encoder.encode(PASSWORD);
+    }
+
+    @Benchmark
+    public boolean matches() {
+        return encoder.matches(PASSWORD, encodedPassword);
+    }
+
+    @Benchmark
+    public boolean matchesLegacy() {
+        return encoder.matches(PASSWORD, legacyEncodedPassword);
+    }
+}
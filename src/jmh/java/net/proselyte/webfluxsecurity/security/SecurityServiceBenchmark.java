@@ -0,0 +1,54 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+import net.proselyte.webfluxsecurity.config.JwtSigningProperties;
+import net.proselyte.webfluxsecurity.entity.UserEntity;
+import net.proselyte.webfluxsecurity.entity.UserRole;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выпуск токена при логине (SecurityService.generateToken).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SecurityServiceBenchmark {
+
+    /**
+     * ES256 - на ключе, созданном на время бенчмарка.
+     */
+    @Param({"HS256", "ES256"})
+    private SignatureAlgorithm algorithm;
+
+    private SecurityService securityService;
+    private UserEntity user;
+
+    @Setup
+    public void setUp() {
+        JwtSigningProperties signing = BenchmarkTokens.signing(algorithm);
+        TokenIssuer tokenIssuer = new TokenIssuer(JwtKeyRing.from(signing, BenchmarkTokens.SECRET),
+                Clock.systemUTC(), "proselyte", 3600, 1209600);
+        securityService = new SecurityService(null, null, null, null, null, null, tokenIssuer, AuthMode.JWT, null);
+
+        user = UserEntity.builder()
+                .id(1L)
+                .username("proselyte")
+                .role(UserRole.USER)
+                .enabled(true)
+                .build();
+    }
+
+    @Benchmark
+    public TokenDetails generateToken() {
+        return securityService.generateToken(user);
+    }
+}
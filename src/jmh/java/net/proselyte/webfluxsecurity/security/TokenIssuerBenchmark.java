@@ -0,0 +1,108 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import net.proselyte.webfluxsecurity.config.JwtSigningProperties;
+import net.proselyte.webfluxsecurity.entity.UserRole;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выпуск токена при логине под нагрузкой: все ядра выпускают токены одновременно
+ * (Threads.MAX), как при волне логинов. Сравниваются старый путь через Jwts.builder()
+ * (мапа claims, UUID.randomUUID() на общем SecureRandom, несколько Date) и TokenIssuer,
+ * а также пакетный выпуск.
+ * Смотреть на throughput и gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(Threads.MAX)
+public class TokenIssuerBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * ES256 - на ключе, созданном на время бенчмарка.
+     */
+    @Param({"HS256", "ES256"})
+    private SignatureAlgorithm algorithm;
+
+    private JwtKeyRing keyRing;
+    private TokenIssuer tokenIssuer;
+    private List<TokenSubject> batch;
+
+    @Setup
+    public void setUp() {
+        JwtSigningProperties signing = BenchmarkTokens.signing(algorithm);
+        keyRing = JwtKeyRing.from(signing, BenchmarkTokens.SECRET);
+        tokenIssuer = new TokenIssuer(keyRing, Clock.systemUTC(), "proselyte", 900, 1209600);
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (long id = 1; id <= BATCH_SIZE; id++) {
+            batch.add(new TokenSubject(id, "user" + id, UserRole.USER));
+        }
+    }
+
+    /**
+     * Старый SecurityService.generateToken.
+     */
+    @Benchmark
+    public String jjwtBuilder() {
+        Map<String, Object> claims = new HashMap<>() {{
+            put("role", UserRole.USER);
+            put("username", "proselyte");
+            put(TokenType.CLAIM, TokenType.ACCESS.value());
+        }};
+        long createdDate = new Date().getTime();
+        Date expirationDate = new Date(createdDate + 900 * 1000L);
+        return Jwts.builder()
+                .setClaims(claims)
+                .setIssuer("proselyte")
+                .setSubject("1")
+                .setIssuedAt(new Date())
+                .setId(UUID.randomUUID().toString())
+                .setExpiration(expirationDate)
+                .setHeaderParams(keyRing.getSigningHeader())
+                .signWith(keyRing.getSigningAlgorithm(), keyRing.getSigningKey())
+                .compact();
+    }
+
+    @Benchmark
+    public TokenDetails tokenIssuer() {
+        return tokenIssuer.issueAccess(1L, "proselyte", UserRole.USER);
+    }
+
+    /**
+     * Пара access + refresh, как на /login.
+     */
+    @Benchmark
+    public TokenDetails tokenIssuerPair() {
+        return tokenIssuer.issuePair(1L, "proselyte", UserRole.USER);
+    }
+
+    /**
+     * Пакет из BATCH_SIZE токенов, результат - на один токен.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<TokenDetails> tokenIssuerBatch() {
+        return tokenIssuer.issueAccess(batch);
+    }
+}
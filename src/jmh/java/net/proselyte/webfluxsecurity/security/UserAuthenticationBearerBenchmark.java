@@ -0,0 +1,35 @@
+package net.proselyte.webfluxsecurity.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.security.core.Authentication;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сборка Authentication из уже проверенного токена.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UserAuthenticationBearerBenchmark {
+
+    private JwtHandler.VerificationResult verificationResult;
+
+    @Setup
+    public void setUp() {
+        verificationResult = new JwtHandler(BenchmarkTokens.SECRET)
+                .check(BenchmarkTokens.token())
+                .block();
+    }
+
+    @Benchmark
+    public Authentication create() {
+        return UserAuthenticationBearer.create(verificationResult).block();
+    }
+}
@@ -0,0 +1,20 @@
+package net.proselyte.webfluxsecurity.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Clock;
+
+/**
+ * Общие часы приложения.
+ * Все, что сверяется со временем (экспирация токенов и т.п.), берет время
+ * из этого бина, чтобы его можно было подменить в тестах и бенчмарках.
+ */
+@Configuration
+public class ClockConfig {
+
+    @Bean
+    public Clock clock() {
+        return Clock.systemUTC();
+    }
+}
@@ -0,0 +1,53 @@
+package net.proselyte.webfluxsecurity.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.flyway.FlywayMigrationStrategy;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Locale;
+
+/**
+ * Что делать с миграциями Flyway при старте приложения (database.migration.mode).
+ * <p>
+ * - migrate - накатить миграции (как раньше, удобно локально);
+ * - validate - только сверить схему с миграциями, старт падает, если база отстала;
+ * - skip - к базе по JDBC при старте не ходить вообще (без AOT можно еще и
+ *   spring.flyway.enabled=false - тогда бина Flyway нет совсем). Для этого
+ *   spring.flyway.locations не должен содержать {vendor}: Spring Boot подставляет его
+ *   по метаданным JDBC-соединения еще до того, как сработает стратегия.
+ * <p>
+ * В проде миграции накатываются отдельным одноразовым запуском с профилем migrate,
+ * а экземпляры, которые поднимает автоскейлинг, стартуют с validate или skip и не
+ * держат очередь на блокировке таблицы flyway_schema_history.
+ * <p>
+ * Режим читается при запуске, поэтому работает и в AOT-сборке.
+ */
+@Slf4j
+@Configuration
+public class FlywayConfig {
+
+    public enum MigrationMode {
+        MIGRATE, VALIDATE, SKIP
+    }
+
+    @Bean
+    public FlywayMigrationStrategy flywayMigrationStrategy(@Value("${database.migration.mode}") String mode) {
+        MigrationMode migrationMode = MigrationMode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        return flyway -> {
+            switch (migrationMode) {
+                case MIGRATE -> {
+                    var result = flyway.migrate();
+                    log.info("IN flywayMigrationStrategy - {} migrations applied, schema version {}",
+                            result.migrationsExecuted, result.targetSchemaVersion);
+                }
+                case VALIDATE -> {
+                    flyway.validate();
+                    log.info("IN flywayMigrationStrategy - schema validated");
+                }
+                case SKIP -> log.info("IN flywayMigrationStrategy - migrations skipped");
+            }
+        };
+    }
+}
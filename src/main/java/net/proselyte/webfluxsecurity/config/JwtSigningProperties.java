@@ -0,0 +1,59 @@
+package net.proselyte.webfluxsecurity.config;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Настройки подписи токенов (jwt.signing.*).
+ * <p>
+ * Ротация ключа без простоя:
+ * 1. добавить новый ключ в keys, active-kid не менять - новый ключ попадет в JWKS,
+ *    и сервисы, которые проверяют токены сами, успеют его забрать (jwks-max-age);
+ * 2. переключить active-kid на новый ключ - новые токены подписываются им,
+ *    старые еще проверяются старым ключом;
+ * 3. когда старые токены протухнут, убрать старый ключ из keys.
+ */
+@Data
+@ConfigurationProperties(prefix = "jwt.signing")
+public class JwtSigningProperties {
+
+    /**
+     * Алгоритм подписи новых токенов: HS256 (общий секрет jwt.secret) или ES256.
+     * ES256 требует ключей в keys - без них приложение не стартует.
+     */
+    private SignatureAlgorithm algorithm = SignatureAlgorithm.HS256;
+    /**
+     * kid ключа, которым подписываем (для ES256).
+     */
+    private String activeKid;
+    /**
+     * Принимать ли токены HS256 без kid, подписанные jwt.secret (при ES256 - выданные до перехода на него).
+     */
+    private boolean acceptHs256 = true;
+    /**
+     * Сколько клиенты могут кэшировать /.well-known/jwks.json.
+     */
+    private Duration jwksMaxAge = Duration.ofMinutes(5);
+    /**
+     * Ключи EC P-256. Ключ без private-key используется только для проверки.
+     */
+    private List<Key> keys = new ArrayList<>();
+
+    @Data
+    public static class Key {
+        private String kid;
+        /**
+         * PKCS#8 в Base64 (можно PEM целиком).
+         */
+        private String privateKey;
+        /**
+         * X.509 SubjectPublicKeyInfo в Base64 (можно PEM целиком).
+         */
+        private String publicKey;
+    }
+}
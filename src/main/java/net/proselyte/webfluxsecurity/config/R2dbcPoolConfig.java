@@ -0,0 +1,115 @@
+package net.proselyte.webfluxsecurity.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactory;
+import lombok.extern.slf4j.Slf4j;
+import net.proselyte.webfluxsecurity.metrics.MeteredConnectionFactory;
+import net.proselyte.webfluxsecurity.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.r2dbc.R2dbcProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.context.properties.PropertyMapper;
+import org.springframework.boot.r2dbc.ConnectionFactoryBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Пул соединений R2DBC.
+ * <p>
+ * Пул собирается здесь, а не по префиксу r2dbc:pool: в URL: настройки берутся
+ * из spring.r2dbc.pool.* (размеры, таймауты получения и открытия соединения,
+ * время жизни, валидация), а сам пул оборачивается в MeteredConnectionFactory
+ * ради метрики времени получения соединения.
+ * <p>
+ * Прогрев (database.warmup.enabled) выполняется ApplicationRunner'ом, т.е. до
+ * ApplicationReadyEvent - readiness-проба не пустит трафик, пока initial-size
+ * соединений не открыто и на них не подготовлены запросы логина и проверки токена.
+ */
+@Slf4j
+@Configuration
+@EnableConfigurationProperties(R2dbcProperties.class)
+public class R2dbcPoolConfig {
+
+    @Bean(destroyMethod = "dispose")
+    public MeteredConnectionFactory connectionFactory(R2dbcProperties properties, MeterRegistry registry) {
+        ConnectionFactory connectionFactory = ConnectionFactoryBuilder.withUrl(properties.getUrl())
+                .username(properties.getUsername())
+                .password(properties.getPassword())
+                .build();
+
+        R2dbcProperties.Pool pool = properties.getPool();
+        String name = StringUtils.hasText(properties.getName()) ? properties.getName() : "users";
+        ConnectionPoolConfiguration.Builder builder = ConnectionPoolConfiguration.builder(connectionFactory)
+                .name(name)
+                .initialSize(pool.getInitialSize())
+                .maxSize(pool.getMaxSize())
+                .validationDepth(pool.getValidationDepth());
+        PropertyMapper map = PropertyMapper.get().alwaysApplyingWhenNonNull();
+        map.from(pool.getMaxIdleTime()).to(builder::maxIdleTime);
+        map.from(pool.getMaxLifeTime()).to(builder::maxLifeTime);
+        map.from(pool.getMaxAcquireTime()).to(builder::maxAcquireTime);
+        map.from(pool.getMaxCreateConnectionTime()).to(builder::maxCreateConnectionTime);
+        map.from(pool.getValidationQuery()).whenHasText().to(builder::validationQuery);
+
+        log.info("IN connectionFactory - pool {}: initial size {}, max size {}, max acquire time {}",
+                name, pool.getInitialSize(), pool.getMaxSize(), pool.getMaxAcquireTime());
+        return new MeteredConnectionFactory(new ConnectionPool(builder.build()), name, registry);
+    }
+
+    /**
+     * Прогрев пула: открываем initial-size соединений и на каждом выполняем запросы
+     * логина и проверки токена (findCredentialsByUsername, findStatusById) и findById
+     * с заведомо несуществующими значениями.
+     * Драйвер кэширует подготовленные выражения на соединении, поэтому первые
+     * логины и проверки токенов после деплоя не платят ни за TCP/TLS и авторизацию
+     * в Postgres, ни за Parse запроса.
+     * <p>
+     * Запросы идут через репозиторий (тот же SQL, что и в бою) по одному на
+     * соединение одновременно, поэтому пул раздает их на разные соединения.
+     * Если база недоступна, приложение все равно стартует - соединения откроются
+     * при первых запросах, а в лог пишется предупреждение.
+     * <p>
+     * Флаг проверяется при запуске, а не через @ConditionalOnProperty: при AOT-сборке
+     * условия на бины вычисляются на этапе сборки и фиксируются в jar.
+     */
+    @Bean
+    public ApplicationRunner connectionPoolWarmup(MeteredConnectionFactory connectionFactory,
+                                                  R2dbcProperties properties,
+                                                  UserRepository userRepository,
+                                                  @Value("${database.warmup.enabled}") boolean enabled,
+                                                  @Value("${database.warmup.timeout}") Duration timeout) {
+        return args -> {
+            if (!enabled) {
+                return;
+            }
+            ConnectionPool pool = connectionFactory.getPool();
+            int connections = Math.max(properties.getPool().getInitialSize(), 1);
+            long start = System.nanoTime();
+            Integer opened = pool.warmup()
+                    .flatMap(created -> Flux.range(0, connections)
+                            .flatMap(i -> userRepository.findStatusById(-1L)
+                                    .then(userRepository.findCredentialsByUsername(""))
+                                    .then(userRepository.findById(-1L))
+                                    .then(), connections)
+                            .then(Mono.just(created)))
+                    .timeout(timeout)
+                    .onErrorResume(e -> {
+                        log.warn("IN connectionPoolWarmup - warm-up failed, connections will be opened on demand", e);
+                        return Mono.empty();
+                    })
+                    .block();
+            if (opened != null) {
+                log.info("IN connectionPoolWarmup - {} connections opened and prepared in {} ms",
+                        opened, Duration.ofNanos(System.nanoTime() - start).toMillis());
+            }
+        };
+    }
+}
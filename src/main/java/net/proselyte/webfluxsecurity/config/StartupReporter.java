@@ -0,0 +1,43 @@
+package net.proselyte.webfluxsecurity.config;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Время старта приложения и выход сразу после старта.
+ * <p>
+ * В лог пишется время до ApplicationReadyEvent (readiness) - и по часам Spring, и от
+ * запуска JVM; по этой строке сравниваются режимы запуска (./gradlew startupTime).
+ * <p>
+ * startup.exit-on-ready=true - завершить процесс после старта. Нужно для одноразовых
+ * запусков: профиль migrate (накатить миграции и выйти), тренировочный запуск для
+ * CDS-архива и замер времени старта.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class StartupReporter {
+
+    private final ApplicationContext context;
+
+    @Value("${startup.exit-on-ready:false}")
+    private boolean exitOnReady;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady(ApplicationReadyEvent event) {
+        log.info("IN onApplicationReady - ready in {} ms (JVM uptime {} ms)",
+                event.getTimeTaken().toMillis(), ManagementFactory.getRuntimeMXBean().getUptime());
+        if (exitOnReady) {
+            log.info("IN onApplicationReady - startup.exit-on-ready is set, shutting down");
+            System.exit(SpringApplication.exit(context));
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package net.proselyte.webfluxsecurity.config;
+
+import lombok.RequiredArgsConstructor;
+import net.proselyte.webfluxsecurity.security.CurrentUserArgumentResolver;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+import org.springframework.web.reactive.result.method.annotation.ArgumentResolverConfigurer;
+
+/**
+ * Настройки WebFlux: свои резолверы параметров контроллеров.
+ */
+@Configuration
+@RequiredArgsConstructor
+public class WebFluxConfig implements WebFluxConfigurer {
+
+    private final CurrentUserArgumentResolver currentUserArgumentResolver;
+
+    @Override
+    public void configureArgumentResolvers(ArgumentResolverConfigurer configurer) {
+        configurer.addCustomResolver(currentUserArgumentResolver);
+    }
+}
@@ -1,10 +1,21 @@
 package net.proselyte.webfluxsecurity.config;
 
 import lombok.extern.slf4j.Slf4j;
+import net.proselyte.webfluxsecurity.metrics.SecurityMetrics;
+import net.proselyte.webfluxsecurity.security.AuthMode;
 import net.proselyte.webfluxsecurity.security.AuthenticationManager;
 import net.proselyte.webfluxsecurity.security.BearerTokenServerAuthenticationConverter;
+import net.proselyte.webfluxsecurity.security.HmacTokenCodec;
 import net.proselyte.webfluxsecurity.security.JwtHandler;
+import net.proselyte.webfluxsecurity.security.JwtKeyRing;
+import net.proselyte.webfluxsecurity.security.OpaqueTokenServerAuthenticationConverter;
+import net.proselyte.webfluxsecurity.security.OpaqueTokenService;
+import net.proselyte.webfluxsecurity.security.RevocationIndex;
+import net.proselyte.webfluxsecurity.security.ShardedSessionRepository;
+import net.proselyte.webfluxsecurity.security.TokenIssuer;
+import net.proselyte.webfluxsecurity.security.VerifiedTokenCache;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpMethod;
@@ -14,12 +25,17 @@ import org.springframework.security.config.web.server.SecurityWebFiltersOrder;
 import org.springframework.security.config.web.server.ServerHttpSecurity;
 import org.springframework.security.web.server.SecurityWebFilterChain;
 import org.springframework.security.web.server.authentication.AuthenticationWebFilter;
+import org.springframework.security.web.server.authentication.ServerAuthenticationConverter;
 import org.springframework.security.web.server.util.matcher.ServerWebExchangeMatchers;
 import reactor.core.publisher.Mono;
 
+import java.time.Clock;
+import java.time.Duration;
+
 @Slf4j
 @Configuration
 @EnableReactiveMethodSecurity
+@EnableConfigurationProperties(JwtSigningProperties.class)
 public class WebSecurityConfig {
 
     @Value("${jwt.secret}")
@@ -29,11 +45,151 @@ public class WebSecurityConfig {
      * Публичные роуты, к которым имеем доступ:
      * - эндпоинт регистрации
      * - эндпоинт аутентификации
+     * - эндпоинт обновления пары токенов (refresh-токен проверяется в самом эндпоинте)
+     * - health из actuator (его опрашивает оркестратор); prometheus и остальные
+     *   эндпоинты actuator - только для ADMIN
+     * - публичные ключи проверки токенов (JWKS)
      */
-    private final String[] publicRoutes = {"/api/v1/auth/register", "/api/v1/auth/login"};
+    private final String[] publicRoutes = {"/api/v1/auth/register", "/api/v1/auth/login", "/api/v1/auth/refresh",
+            "/actuator/health/**", "/.well-known/jwks.json"};
+
+    /**
+     * Ключи подписи и проверки токенов (jwt.signing.*).
+     *
+     * @param properties настройки подписи
+     * @return JwtKeyRing
+     */
+    @Bean
+    public JwtKeyRing jwtKeyRing(JwtSigningProperties properties) {
+        return JwtKeyRing.from(properties, secret);
+    }
+
+    /**
+     * Один JwtHandler на всё приложение: ключи и парсер в нем
+     * создаются один раз, а не на каждый запрос.
+     *
+     * @param keyRing ключи проверки подписи
+     * @param clock   часы для проверки экспирации токена
+     * @return JwtHandler
+     */
+    @Bean
+    public JwtHandler jwtHandler(JwtKeyRing keyRing, Clock clock) {
+        return new JwtHandler(keyRing, clock);
+    }
+
+    /**
+     * Выпуск токенов: заголовок и ключ подписи готовятся один раз.
+     *
+     * @param keyRing                ключ подписи (активный kid)
+     * @param clock                  часы для дат выдачи и экспирации
+     * @param issuer                 кто выдает токен
+     * @param accessLifetimeSeconds  время жизни access-токена
+     * @param refreshLifetimeSeconds время жизни refresh-токена
+     * @return TokenIssuer
+     */
+    @Bean
+    public TokenIssuer tokenIssuer(JwtKeyRing keyRing, Clock clock,
+                                   @Value("${jwt.issuer}") String issuer,
+                                   @Value("${jwt.expiration}") long accessLifetimeSeconds,
+                                   @Value("${jwt.refresh.expiration}") long refreshLifetimeSeconds) {
+        return new TokenIssuer(keyRing, clock, issuer, accessLifetimeSeconds, refreshLifetimeSeconds);
+    }
+
+    /**
+     * Быстрая проверка наших HS256 токенов (без jjwt). Если HS256 токены
+     * не принимаются, ключа нет и все токены идут через JwtHandler.
+     *
+     * @param keyRing ключи проверки подписи
+     * @param clock   часы для проверки экспирации токена
+     * @return HmacTokenCodec
+     */
+    @Bean
+    public HmacTokenCodec hmacTokenCodec(JwtKeyRing keyRing, Clock clock) {
+        return new HmacTokenCodec(keyRing.getHmacKey(), clock);
+    }
+
+    /**
+     * Кэш проверенных токенов перед JwtHandler.check.
+     *
+     * @param enabled     включен ли кэш
+     * @param maximumSize максимальное количество токенов в кэше
+     * @param clock       часы для экспирации записей
+     * @param metrics     метрики, в которые отдаем счетчики кэша
+     * @return VerifiedTokenCache
+     */
+    @Bean
+    public VerifiedTokenCache verifiedTokenCache(@Value("${jwt.cache.enabled}") boolean enabled,
+                                                 @Value("${jwt.cache.max-size}") long maximumSize,
+                                                 Clock clock,
+                                                 SecurityMetrics metrics) {
+        VerifiedTokenCache cache = new VerifiedTokenCache(enabled, maximumSize, clock);
+        metrics.bindTokenCache(cache);
+        return cache;
+    }
+
+    /**
+     * Режим аутентификации: jwt (по умолчанию) или session - непрозрачные токены.
+     * Читается при старте контекста, а не через @Conditional, поэтому его можно
+     * переключить и в AOT-сборке.
+     *
+     * @param mode значение security.auth-mode
+     * @return AuthMode
+     */
+    @Bean
+    public AuthMode authMode(@Value("${security.auth-mode}") String mode) {
+        AuthMode authMode = AuthMode.of(mode);
+        log.info("IN authMode - authentication mode: {}", authMode);
+        return authMode;
+    }
+
+    /**
+     * Сессии в памяти для режима session. Пустое хранилище почти ничего не стоит,
+     * поэтому создается в обоих режимах.
+     *
+     * @param ttl         сколько живет сессия без обращений
+     * @param maxSessions максимум сессий в памяти
+     * @param shards      число шардов с отдельной блокировкой
+     * @param clock       часы для сроков жизни сессий
+     * @param metrics     метрики, в которые отдаем размер хранилища
+     * @return ShardedSessionRepository
+     */
+    @Bean
+    public ShardedSessionRepository shardedSessionRepository(@Value("${security.session.ttl}") Duration ttl,
+                                                             @Value("${security.session.max-sessions}") int maxSessions,
+                                                             @Value("${security.session.shards}") int shards,
+                                                             Clock clock,
+                                                             SecurityMetrics metrics) {
+        ShardedSessionRepository repository = new ShardedSessionRepository(ttl, maxSessions, shards, clock);
+        metrics.bindSessionRepository(repository);
+        return repository;
+    }
+
+    /**
+     * Выдача и проверка непрозрачных токенов.
+     *
+     * @param sessionRepository хранилище сессий
+     * @return OpaqueTokenService
+     */
+    @Bean
+    public OpaqueTokenService opaqueTokenService(ShardedSessionRepository sessionRepository) {
+        return new OpaqueTokenService(sessionRepository);
+    }
 
     @Bean
-    public SecurityWebFilterChain securityWebFilterChain(ServerHttpSecurity http, AuthenticationManager authenticationManager) {
+    public SecurityWebFilterChain securityWebFilterChain(ServerHttpSecurity http,
+                                                         AuthenticationManager authenticationManager,
+                                                         JwtHandler jwtHandler,
+                                                         HmacTokenCodec hmacTokenCodec,
+                                                         VerifiedTokenCache verifiedTokenCache,
+                                                         RevocationIndex revocationIndex,
+                                                         SecurityMetrics securityMetrics,
+                                                         AuthMode authMode,
+                                                         OpaqueTokenService opaqueTokenService) {
+        //конвертер заголовка Authorization по режиму аутентификации
+        ServerAuthenticationConverter converter = authMode == AuthMode.SESSION
+                ? new OpaqueTokenServerAuthenticationConverter(opaqueTokenService, securityMetrics)
+                : new BearerTokenServerAuthenticationConverter(jwtHandler, hmacTokenCodec, verifiedTokenCache,
+                revocationIndex, securityMetrics);
         return http
                 //отключаем csrf
                 .csrf().disable()
@@ -44,6 +200,9 @@ public class WebSecurityConfig {
                 //говорим, что публичные запросы, указанные в массиве, разрешаем всем
                 .pathMatchers(publicRoutes)
                 .permitAll()
+                //остальные эндпоинты actuator (metrics и т.п.) и администрирование - только для ADMIN
+                .pathMatchers("/actuator/**", "/api/v1/admin/**")
+                .hasAuthority("ADMIN")
                 //любой запрос должен быть аутентифицирован
                 .anyExchange()
                 .authenticated()
@@ -62,7 +221,8 @@ public class WebSecurityConfig {
                 })
                 .and()
                 //добавляем фильтр для процесса аутентификации и его порядок - аутентификация
-                .addFilterAt(bearerAuthenticationFilter(authenticationManager), SecurityWebFiltersOrder.AUTHENTICATION)
+                .addFilterAt(bearerAuthenticationFilter(authenticationManager, converter),
+                        SecurityWebFiltersOrder.AUTHENTICATION)
                 .build();
     }
 
@@ -71,18 +231,17 @@ public class WebSecurityConfig {
      * для процесса аутентификации.
      *
      * @param authenticationManager authenticationManager
+     * @param converter             конвертер заголовка Authorization (JWT или непрозрачный токен)
      * @return AuthenticationWebFilter
      */
-    private AuthenticationWebFilter bearerAuthenticationFilter(AuthenticationManager authenticationManager) {
+    private AuthenticationWebFilter bearerAuthenticationFilter(AuthenticationManager authenticationManager,
+                                                               ServerAuthenticationConverter converter) {
         //создаем AuthenticationWebFilter
         AuthenticationWebFilter bearerAuthenticationFilter = new AuthenticationWebFilter(authenticationManager);
 
-        //создаваемый фильтр принимает в себя конвертер BearerTokenServerAuthenticationConverter
-        bearerAuthenticationFilter.setServerAuthenticationConverter(
-                new BearerTokenServerAuthenticationConverter(
-                        new JwtHandler(secret) //хендлер с секретом
-                )
-        );
+        //создаваемый фильтр принимает в себя конвертер (BearerTokenServerAuthenticationConverter
+        //или OpaqueTokenServerAuthenticationConverter)
+        bearerAuthenticationFilter.setServerAuthenticationConverter(converter);
         //говорим, что это фильтр применяется для всех входящих запросов, которые у нас есть.
         bearerAuthenticationFilter.setRequiresAuthenticationMatcher(ServerWebExchangeMatchers.pathMatchers("/**"));
 
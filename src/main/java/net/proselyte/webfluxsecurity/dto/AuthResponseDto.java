@@ -23,5 +23,7 @@ public class AuthResponseDto {
     private String token;
     private Date issuedAt;
     private Date expiresAt;
+    private String refreshToken;
+    private Date refreshExpiresAt;
 
 }
@@ -0,0 +1,36 @@
+package net.proselyte.webfluxsecurity.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.PropertyNamingStrategies;
+import com.fasterxml.jackson.databind.annotation.JsonNaming;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * DTO результата одного пакета из пакетного изменения пользователей
+ * (включение, отключение, смена роли).
+ * chunk - номер пакета (с нуля), requested - сколько id было в пакете,
+ * updated - сколько пользователей действительно изменилось,
+ * processed - сколько id обработано с начала запроса.
+ */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonNaming(PropertyNamingStrategies.SnakeCaseStrategy.class)
+public class BulkUpdateResultDto {
+
+    public enum Status {
+        OK, FAILED
+    }
+
+    private Long chunk;
+    private Integer requested;
+    private Integer updated;
+    private Long processed;
+    private Status status;
+    private String message;
+}
@@ -0,0 +1,14 @@
+package net.proselyte.webfluxsecurity.dto;
+
+import com.fasterxml.jackson.databind.PropertyNamingStrategies;
+import com.fasterxml.jackson.databind.annotation.JsonNaming;
+import lombok.Data;
+
+/**
+ * DTO с refresh-токеном (для refresh и logout).
+ */
+@Data
+@JsonNaming(PropertyNamingStrategies.SnakeCaseStrategy.class)
+public class RefreshRequestDto {
+    private String refreshToken;
+}
@@ -0,0 +1,23 @@
+package net.proselyte.webfluxsecurity.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Данные пользователя, нужные для логина: id, username (в том регистре, в котором
+ * он хранится), хэш пароля, роль и enabled. Без имен и дат - читается из покрывающего
+ * индекса, не трогая строку таблицы.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserCredentials {
+    private Long id;
+    private String username;
+    @ToString.Exclude
+    private String password;
+    private UserRole role;
+    private boolean enabled;
+}
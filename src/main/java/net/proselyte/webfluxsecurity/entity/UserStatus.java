@@ -0,0 +1,18 @@
+package net.proselyte.webfluxsecurity.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Состояние пользователя, нужное для проверки каждого запроса:
+ * активен ли он и какая у него роль. Без пароля, имен и дат.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserStatus {
+    private Long id;
+    private UserRole role;
+    private boolean enabled;
+}
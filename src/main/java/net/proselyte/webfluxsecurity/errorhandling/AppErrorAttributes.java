@@ -5,6 +5,8 @@ import io.jsonwebtoken.MalformedJwtException;
 import io.jsonwebtoken.SignatureException;
 import net.proselyte.webfluxsecurity.exception.ApiException;
 import net.proselyte.webfluxsecurity.exception.AuthException;
+import net.proselyte.webfluxsecurity.exception.ServiceUnavailableException;
+import net.proselyte.webfluxsecurity.exception.TooManyRequestsException;
 import net.proselyte.webfluxsecurity.exception.UnauthorizedException;
 import org.springframework.boot.web.error.ErrorAttributeOptions;
 import org.springframework.boot.web.reactive.error.DefaultErrorAttributes;
@@ -15,11 +17,11 @@ import org.springframework.web.reactive.function.server.ServerRequest;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 @Component
 public class AppErrorAttributes extends DefaultErrorAttributes {
-    private HttpStatus status = HttpStatus.INTERNAL_SERVER_ERROR;
 
     public AppErrorAttributes() {
         super();
@@ -27,6 +29,8 @@ public class AppErrorAttributes extends DefaultErrorAttributes {
 
     /**
      * Переопределенный метод для обработки ошибок.
+     * Статус считается для каждого запроса заново (локальная переменная),
+     * общих изменяемых полей у бина нет - он обслуживает все запросы параллельно.
      *
      * @param request the source request
      * @param options options for error attribute contents
@@ -36,40 +40,68 @@ public class AppErrorAttributes extends DefaultErrorAttributes {
     public Map<String, Object> getErrorAttributes(ServerRequest request, ErrorAttributeOptions options) {
         var errorAttributes = super.getErrorAttributes(request, ErrorAttributeOptions.defaults());
         var error = getError(request);
+        var status = statusOf(error);
 
-        var errorList = new ArrayList<Map<String, Object>>();
+        if (error instanceof TooManyRequestsException tooManyRequests) {
+            errorAttributes.put("retryAfter", tooManyRequests.getRetryAfterSeconds());
+        }
+
+        var errors = new HashMap<String, Object>();
+        errors.put("errors", errorList(error));
+        errorAttributes.put("status", status.value());
+        errorAttributes.put("errors", errors);
 
+        return errorAttributes;
+    }
+
+    /**
+     * HTTP статус для ошибки.
+     *
+     * @param error ошибка
+     * @return статус ответа
+     */
+    static HttpStatus statusOf(Throwable error) {
         if (error instanceof AuthException || error instanceof UnauthorizedException
                 || error instanceof ExpiredJwtException || error instanceof SignatureException || error instanceof MalformedJwtException) {
-            status = HttpStatus.UNAUTHORIZED;
-            var errorMap = new LinkedHashMap<String, Object>();
-            errorMap.put("code", ((ApiException) error).getErrorCode());
+            return HttpStatus.UNAUTHORIZED;
+        }
+        if (error instanceof TooManyRequestsException) {
+            return HttpStatus.TOO_MANY_REQUESTS;
+        }
+        if (error instanceof ServiceUnavailableException) {
+            return HttpStatus.SERVICE_UNAVAILABLE;
+        }
+        if (error instanceof ApiException) {
+            return HttpStatus.BAD_REQUEST;
+        }
+        return HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * Тело ответа: список из одной ошибки с кодом и сообщением.
+     *
+     * @param error ошибка
+     * @return список ошибок
+     */
+    static List<Map<String, Object>> errorList(Throwable error) {
+        var errorMap = new LinkedHashMap<String, Object>();
+        if (error instanceof ApiException apiException) {
+            errorMap.put("code", apiException.getErrorCode());
             errorMap.put("message", error.getMessage());
-            errorList.add(errorMap);
-        } else if (error instanceof ApiException) {
-            status = HttpStatus.BAD_REQUEST;
-            var errorMap = new LinkedHashMap<String, Object>();
-            errorMap.put("code", ((ApiException) error).getErrorCode());
+        } else if (statusOf(error) == HttpStatus.UNAUTHORIZED) {
+            //исключения jjwt не наследуют ApiException - у них свой код
+            errorMap.put("code", "PROSELYTE_UNAUTHORIZED");
             errorMap.put("message", error.getMessage());
-            errorList.add(errorMap);
         } else {
-            status = HttpStatus.INTERNAL_SERVER_ERROR;
             var message = error.getMessage();
             if (message == null)
                 message = error.getClass().getName();
 
-            var errorMap = new LinkedHashMap<String, Object>();
             errorMap.put("code", "INTERNAL_ERROR");
             errorMap.put("message", message);
-            errorList.add(errorMap);
         }
-
-        var errors = new HashMap<String, Object>();
-        errors.put("errors", errorList);
-        errorAttributes.put("status", status.value());
-        errorAttributes.put("errors", errors);
-
-        return errorAttributes;
+        var errorList = new ArrayList<Map<String, Object>>();
+        errorList.add(errorMap);
+        return errorList;
     }
 }
-
@@ -1,10 +1,16 @@
 package net.proselyte.webfluxsecurity.errorhandling;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.proselyte.webfluxsecurity.exception.ApiException;
+import net.proselyte.webfluxsecurity.exception.AuthException;
+import net.proselyte.webfluxsecurity.exception.UnauthorizedException;
 import org.springframework.boot.autoconfigure.web.WebProperties;
 import org.springframework.boot.autoconfigure.web.reactive.error.AbstractErrorWebExceptionHandler;
 import org.springframework.boot.web.error.ErrorAttributeOptions;
 import org.springframework.boot.web.reactive.error.ErrorAttributes;
 import org.springframework.context.ApplicationContext;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.codec.ServerCodecConfigurer;
 import org.springframework.stereotype.Component;
@@ -13,16 +19,45 @@ import org.springframework.web.reactive.function.server.RequestPredicates;
 import org.springframework.web.reactive.function.server.RouterFunction;
 import org.springframework.web.reactive.function.server.RouterFunctions;
 import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Класс обработчик ошибок.
+ * <p>
+ * Для заранее созданных ошибок аутентификации (UnauthorizedException.PREALLOCATED,
+ * AuthException.PREALLOCATED) тело ответа сериализуется один раз при старте
+ * и пишется готовыми байтами - без сборки атрибутов, роутинга и Jackson на каждый отказ.
  */
 @Component
 public class AppErrorWebExceptionHandler extends AbstractErrorWebExceptionHandler {
-    public AppErrorWebExceptionHandler(AppErrorAttributes g, ApplicationContext applicationContext, ServerCodecConfigurer serverCodecConfigurer) {
+
+    private final Map<ApiException, byte[]> preallocatedBodies;
+
+    public AppErrorWebExceptionHandler(AppErrorAttributes g, ApplicationContext applicationContext,
+                                       ServerCodecConfigurer serverCodecConfigurer, ObjectMapper objectMapper) {
         super(g, new WebProperties.Resources(), applicationContext);
         super.setMessageWriters(serverCodecConfigurer.getWriters());
         super.setMessageReaders(serverCodecConfigurer.getReaders());
+        this.preallocatedBodies = serializeBodies(objectMapper);
+    }
+
+    @Override
+    public Mono<Void> handle(ServerWebExchange exchange, Throwable throwable) {
+        //исключения-константы сравниваем по ссылке, их мало и они неизменяемые
+        byte[] body = throwable instanceof ApiException ? preallocatedBodies.get(throwable) : null;
+        var response = exchange.getResponse();
+        if (body == null || response.isCommitted()) {
+            return super.handle(exchange, throwable);
+        }
+        response.setStatusCode(AppErrorAttributes.statusOf(throwable));
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        response.getHeaders().setContentLength(body.length);
+        return response.writeWith(Mono.fromSupplier(() -> response.bufferFactory().wrap(body)));
     }
 
     @Override
@@ -30,9 +65,35 @@ public class AppErrorWebExceptionHandler extends AbstractErrorWebExceptionHandle
         return RouterFunctions.route(RequestPredicates.all(), request -> {
             var props = getErrorAttributes(request, ErrorAttributeOptions.defaults());
 
-            return ServerResponse.status(Integer.parseInt(props.getOrDefault("status", 500).toString()))
+            var response = ServerResponse.status(Integer.parseInt(props.getOrDefault("status", 500).toString()));
+            //для 429 подсказываем клиенту, когда можно повторить запрос
+            var retryAfter = props.get("retryAfter");
+            if (retryAfter != null) {
+                response.header(HttpHeaders.RETRY_AFTER, retryAfter.toString());
+            }
+            return response
                     .contentType(MediaType.APPLICATION_JSON)
                     .body(BodyInserters.fromValue(props.get("errors")));
         });
     }
+
+    /**
+     * Тела ответов для заранее созданных ошибок - в том же формате, что собирает AppErrorAttributes.
+     *
+     * @param objectMapper маппер приложения
+     * @return тело ответа для каждой ошибки-константы
+     */
+    private static Map<ApiException, byte[]> serializeBodies(ObjectMapper objectMapper) {
+        var bodies = new IdentityHashMap<ApiException, byte[]>();
+        for (List<? extends ApiException> preallocated : List.of(UnauthorizedException.PREALLOCATED, AuthException.PREALLOCATED)) {
+            for (ApiException error : preallocated) {
+                try {
+                    bodies.put(error, objectMapper.writeValueAsBytes(Map.of("errors", AppErrorAttributes.errorList(error))));
+                } catch (JsonProcessingException e) {
+                    throw new IllegalStateException("Cannot serialize error body for " + error.getErrorCode(), e);
+                }
+            }
+        }
+        return bodies;
+    }
 }
@@ -23,4 +23,23 @@ public class ApiException extends RuntimeException{
         super(message);
         this.errorCode = errorCode;
     }
+
+    public ApiException(String message, String errorCode, Throwable cause) {
+        super(message, cause);
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * Заранее созданное исключение без стектрейса и без suppressed - для частых ошибок
+     * (битый, протухший токен и т.п.). Один экземпляр кидается из всех потоков,
+     * поэтому он неизменяемый: стектрейс не пишется, suppressed не добавляются.
+     *
+     * @param message   сообщение ошибки
+     * @param errorCode код ошибки
+     * @param stackless true - без стектрейса
+     */
+    protected ApiException(String message, String errorCode, boolean stackless) {
+        super(message, null, !stackless, !stackless);
+        this.errorCode = errorCode;
+    }
 }
@@ -1,7 +1,28 @@
 package net.proselyte.webfluxsecurity.exception;
 
+import java.util.List;
+
 public class AuthException extends ApiException{
+    /*Частые ошибки логина - заранее созданные, без стектрейса.*/
+    public static final AuthException INVALID_USERNAME =
+            new AuthException("Invalid username", "PROSELYTE_INVALID_USERNAME", true);
+    public static final AuthException INVALID_PASSWORD =
+            new AuthException("Invalid password", "PROSELYTE_INVALID_PASSWORD", true);
+    public static final AuthException ACCOUNT_DISABLED =
+            new AuthException("Account disabled", "PROSELYTE_USER_ACCOUNT_DISABLED", true);
+    public static final AuthException INVALID_REFRESH_TOKEN =
+            new AuthException("Invalid refresh token", "PROSELYTE_INVALID_REFRESH_TOKEN", true);
+    public static final AuthException REFRESH_TOKEN_REVOKED =
+            new AuthException("Refresh token revoked", "PROSELYTE_REFRESH_TOKEN_REVOKED", true);
+
+    public static final List<AuthException> PREALLOCATED = List.of(INVALID_USERNAME, INVALID_PASSWORD,
+            ACCOUNT_DISABLED, INVALID_REFRESH_TOKEN, REFRESH_TOKEN_REVOKED);
+
     public AuthException(String message, String errorCode) {
         super(message, errorCode);
     }
+
+    private AuthException(String message, String errorCode, boolean stackless) {
+        super(message, errorCode, stackless);
+    }
 }
@@ -0,0 +1,10 @@
+package net.proselyte.webfluxsecurity.exception;
+
+/**
+ * Сервис временно перегружен, запрос можно повторить позже (503).
+ */
+public class ServiceUnavailableException extends ApiException {
+    public ServiceUnavailableException(String message, String errorCode) {
+        super(message, errorCode);
+    }
+}
@@ -0,0 +1,20 @@
+package net.proselyte.webfluxsecurity.exception;
+
+import lombok.Getter;
+
+/**
+ * Слишком много запросов (429). В ответ уходит заголовок Retry-After.
+ */
+public class TooManyRequestsException extends ApiException {
+
+    /**
+     * Через сколько секунд можно повторить запрос.
+     */
+    @Getter
+    private final long retryAfterSeconds;
+
+    public TooManyRequestsException(String message, String errorCode, long retryAfterSeconds) {
+        super(message, errorCode);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
@@ -3,11 +3,34 @@ package net.proselyte.webfluxsecurity.exception;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
+import java.util.List;
+
 /**
  * Используется в error handler.
  */
 @ResponseStatus(value = HttpStatus.UNAUTHORIZED)
 public class UnauthorizedException extends ApiException {
+    /*Частые ошибки проверки токена - заранее созданные, без стектрейса:
+    под атакой битые и протухшие токены идут потоком, а стектрейс никому не нужен.*/
+    public static final UnauthorizedException MALFORMED_TOKEN =
+            new UnauthorizedException("Malformed token", "PROSELYTE_TOKEN_MALFORMED", true);
+    public static final UnauthorizedException TOKEN_EXPIRED =
+            new UnauthorizedException("Token expired", "PROSELYTE_TOKEN_EXPIRED", true);
+    public static final UnauthorizedException INVALID_SIGNATURE =
+            new UnauthorizedException("Invalid signature", "PROSELYTE_TOKEN_INVALID_SIGNATURE", true);
+    public static final UnauthorizedException TOKEN_REVOKED =
+            new UnauthorizedException("Token revoked", "PROSELYTE_TOKEN_REVOKED", true);
+    public static final UnauthorizedException REFRESH_TOKEN_AS_ACCESS =
+            new UnauthorizedException("Refresh token can not be used as access token",
+                    "PROSELYTE_TOKEN_WRONG_TYPE", true);
+    public static final UnauthorizedException USER_DISABLED =
+            new UnauthorizedException("User disabled", "PROSELYTE_USER_DISABLED", true);
+    public static final UnauthorizedException SESSION_NOT_FOUND =
+            new UnauthorizedException("Session not found or expired", "PROSELYTE_SESSION_NOT_FOUND", true);
+
+    public static final List<UnauthorizedException> PREALLOCATED = List.of(MALFORMED_TOKEN, TOKEN_EXPIRED,
+            INVALID_SIGNATURE, TOKEN_REVOKED, REFRESH_TOKEN_AS_ACCESS, USER_DISABLED, SESSION_NOT_FOUND);
+
     /**
      * Конструктор только с message, а код стандартный PROSELYTE_UNAUTHORIZED
      *
@@ -16,4 +39,18 @@ public class UnauthorizedException extends ApiException {
     public UnauthorizedException(String message) {
         super(message, "PROSELYTE_UNAUTHORIZED");
     }
+
+    /**
+     * То же, но с исходной причиной (например, исключением парсера токена).
+     *
+     * @param message сообщение ошибки
+     * @param cause   причина
+     */
+    public UnauthorizedException(String message, Throwable cause) {
+        super(message, "PROSELYTE_UNAUTHORIZED", cause);
+    }
+
+    private UnauthorizedException(String message, String errorCode, boolean stackless) {
+        super(message, errorCode, stackless);
+    }
 }
@@ -0,0 +1,73 @@
+package net.proselyte.webfluxsecurity.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryMetadata;
+import io.r2dbc.spi.Wrapped;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пул соединений R2DBC с замером времени получения соединения из пула.
+ * <p>
+ * Гауги пула (r2dbc.pool.acquired, idle, pending, allocated, max.allocated) регистрирует
+ * сам Spring Boot - он находит ConnectionPool через Wrapped.unwrap. Времени ожидания
+ * соединения среди них нет, его и считает этот класс: r2dbc.pool.acquire от подписки
+ * на create() до выдачи соединения, с outcome=failure для таймаута max-acquire-time
+ * и ошибок открытия соединения.
+ */
+public class MeteredConnectionFactory implements ConnectionFactory, Wrapped<ConnectionFactory> {
+
+    private final ConnectionPool pool;
+    private final Timer acquireSuccess;
+    private final Timer acquireFailure;
+
+    public MeteredConnectionFactory(ConnectionPool pool, String name, MeterRegistry registry) {
+        this.pool = pool;
+        this.acquireSuccess = acquireTimer(registry, name, "success");
+        this.acquireFailure = acquireTimer(registry, name, "failure");
+    }
+
+    @Override
+    public Mono<Connection> create() {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return pool.create()
+                    .doOnSuccess(connection -> acquireSuccess.record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+                    .doOnError(e -> acquireFailure.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    @Override
+    public ConnectionFactoryMetadata getMetadata() {
+        return pool.getMetadata();
+    }
+
+    @Override
+    public ConnectionFactory unwrap() {
+        return pool;
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Закрывает пул при остановке контекста.
+     */
+    public void dispose() {
+        pool.dispose();
+    }
+
+    private static Timer acquireTimer(MeterRegistry registry, String name, String outcome) {
+        return Timer.builder("r2dbc.pool.acquire")
+                .description("Time to acquire a connection from the R2DBC pool")
+                .tag("name", name)
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+}
@@ -0,0 +1,268 @@
+package net.proselyte.webfluxsecurity.metrics;
+
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.SignatureException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import net.proselyte.webfluxsecurity.exception.UnauthorizedException;
+import net.proselyte.webfluxsecurity.security.ShardedSessionRepository;
+import net.proselyte.webfluxsecurity.security.VerifiedTokenCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Метрики цепочки безопасности.
+ * <p>
+ * Показывают, откуда берется задержка запроса: разбор токена,
+ * проверка пользователя в AuthenticationManager, PBKDF2 при логине
+ * или запросы в БД. Все метрики начинаются с "auth.", поэтому
+ * гистограммы для них настраиваются в application.yaml через
+ * management.metrics.distribution.*.auth.
+ * <p>
+ * Таймеры создаются заранее, чтобы на каждом запросе не искать их в реестре.
+ * <p>
+ * Если включен Server-Timing (security.server-timing.enabled), то время стадий
+ * еще и пишется в ServerTiming текущего запроса (см. ServerTimingWebFilter).
+ */
+@Component
+public class SecurityMetrics {
+
+    /**
+     * Результат разбора заголовка Authorization.
+     */
+    public enum TokenOutcome {
+        MISSING, MALFORMED, EXPIRED, BAD_SIGNATURE, REVOKED, OK;
+
+        String tag() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final MeterRegistry registry;
+    private final boolean serverTiming;
+
+    private final Map<TokenOutcome, Timer> tokenConvertTimers = new EnumMap<>(TokenOutcome.class);
+    private final Timer authManagerOk;
+    private final Timer authManagerRejected;
+    private final Timer loginOk;
+    private final Timer loginFailed;
+    private final Timer passwordEncode;
+    private final Timer passwordMatches;
+    private final Map<String, Timer> repositoryTimers = new ConcurrentHashMap<>();
+
+    public SecurityMetrics(MeterRegistry registry) {
+        this(registry, false);
+    }
+
+    @Autowired
+    public SecurityMetrics(MeterRegistry registry,
+                           @Value("${security.server-timing.enabled}") boolean serverTiming) {
+        this.registry = registry;
+        this.serverTiming = serverTiming;
+        for (TokenOutcome outcome : TokenOutcome.values()) {
+            tokenConvertTimers.put(outcome, Timer.builder("auth.token.convert")
+                    .description("Bearer token to Authentication conversion")
+                    .tag("outcome", outcome.tag())
+                    .register(registry));
+        }
+        authManagerOk = authManagerTimer("ok");
+        authManagerRejected = authManagerTimer("rejected");
+        loginOk = loginTimer("ok");
+        loginFailed = loginTimer("failed");
+        passwordEncode = passwordHashTimer("encode");
+        passwordMatches = passwordHashTimer("matches");
+    }
+
+    /**
+     * Замеряет BearerTokenServerAuthenticationConverter.convert.
+     * Пустой результат - заголовка нет, ошибка - разбираем ее причину.
+     */
+    public <T> Mono<T> timeTokenConversion(Mono<T> conversion) {
+        return timeStage(ServerTiming.Stage.TOKEN, Mono.defer(() -> {
+            long start = System.nanoTime();
+            return conversion
+                    .doOnSuccess(result -> record(tokenConvertTimers.get(result == null
+                            ? TokenOutcome.MISSING
+                            : TokenOutcome.OK), start))
+                    .doOnError(e -> record(tokenConvertTimers.get(classify(e)), start));
+        }));
+    }
+
+    /**
+     * Замеряет AuthenticationManager.authenticate.
+     */
+    public <T> Mono<T> timeAuthenticationManager(Mono<T> authentication) {
+        return timeStage(ServerTiming.Stage.AUTH, timed(authentication, authManagerOk, authManagerRejected));
+    }
+
+    /**
+     * Замеряет SecurityService.authenticate (логин целиком).
+     */
+    public <T> Mono<T> timeLogin(Mono<T> login) {
+        return timed(login, loginOk, loginFailed);
+    }
+
+    /**
+     * Замеряет само хэширование пароля (без ожидания в очереди крипто-пула).
+     */
+    public <T> T recordPasswordEncode(Callable<T> task) throws Exception {
+        return passwordEncode.recordCallable(task);
+    }
+
+    public <T> T recordPasswordMatches(Callable<T> task) throws Exception {
+        return passwordMatches.recordCallable(task);
+    }
+
+    /**
+     * Замеряет запрос репозитория пользователей.
+     *
+     * @param query название запроса (метод репозитория)
+     */
+    public <T> Mono<T> timeRepository(String query, Mono<T> call) {
+        Timer timer = repositoryTimers.computeIfAbsent(query, q -> Timer.builder("auth.user.repository")
+                .description("UserRepository calls")
+                .tag("query", q)
+                .register(registry));
+        return timeStage(ServerTiming.Stage.DB, timed(call, timer, timer));
+    }
+
+    /**
+     * @return включен ли Server-Timing
+     */
+    public boolean isServerTimingEnabled() {
+        return serverTiming;
+    }
+
+    /**
+     * Добавляет время цепочки к стадии ServerTiming текущего запроса.
+     * Если Server-Timing выключен, цепочка возвращается как есть.
+     * Общая цепочка (см. SingleFlight) пишет время только в запрос,
+     * который ее запустил.
+     *
+     * @param stage стадия
+     * @param call  цепочка
+     */
+    public <T> Mono<T> timeStage(ServerTiming.Stage stage, Mono<T> call) {
+        if (!serverTiming) {
+            return call;
+        }
+        return Mono.deferContextual(context -> {
+            ServerTiming timing = context.getOrDefault(ServerTiming.CONTEXT_KEY, null);
+            if (timing == null) {
+                return call;
+            }
+            long start = System.nanoTime();
+            return call.doFinally(signal -> timing.record(stage, System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * Счетчик вызовов репозитория, которые не пошли в БД, а присоединились
+     * к уже идущему такому же запросу (см. SingleFlight).
+     *
+     * @param query название запроса (метод репозитория)
+     * @return действие, увеличивающее счетчик
+     */
+    public Runnable coalescedCounter(String query) {
+        Counter counter = Counter.builder("auth.user.repository.coalesced")
+                .description("UserRepository calls served by an in-flight identical query")
+                .tag("query", query)
+                .register(registry);
+        return counter::increment;
+    }
+
+    /**
+     * Счетчики кэша проверенных токенов.
+     */
+    public void bindTokenCache(VerifiedTokenCache tokenCache) {
+        FunctionCounter.builder("auth.token.cache", tokenCache, c -> c.stats().hitCount())
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("auth.token.cache", tokenCache, c -> c.stats().missCount())
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder("auth.token.cache.evictions", tokenCache, c -> c.stats().evictionCount())
+                .register(registry);
+    }
+
+    /**
+     * Размер и вытеснения хранилища сессий (режим security.auth-mode: session).
+     */
+    public void bindSessionRepository(ShardedSessionRepository sessionRepository) {
+        Gauge.builder("auth.session.active", sessionRepository, ShardedSessionRepository::size)
+                .description("Sessions held in memory, including expired ones not yet removed")
+                .register(registry);
+        FunctionCounter.builder("auth.session.removed", sessionRepository, ShardedSessionRepository::expiredCount)
+                .tag("reason", "expired")
+                .register(registry);
+        FunctionCounter.builder("auth.session.removed", sessionRepository, ShardedSessionRepository::evictedCount)
+                .tag("reason", "capacity")
+                .register(registry);
+    }
+
+    private static <T> Mono<T> timed(Mono<T> mono, Timer success, Timer failure) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return mono
+                    .doOnSuccess(result -> record(success, start))
+                    .doOnError(e -> record(failure, start));
+        });
+    }
+
+    private static void record(Timer timer, long start) {
+        timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private static TokenOutcome classify(Throwable e) {
+        //частые ошибки - заранее созданные исключения, их сравниваем по ссылке
+        if (e == UnauthorizedException.TOKEN_EXPIRED || e == UnauthorizedException.SESSION_NOT_FOUND) {
+            return TokenOutcome.EXPIRED;
+        }
+        if (e == UnauthorizedException.INVALID_SIGNATURE) {
+            return TokenOutcome.BAD_SIGNATURE;
+        }
+        if (e == UnauthorizedException.TOKEN_REVOKED) {
+            return TokenOutcome.REVOKED;
+        }
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof ExpiredJwtException) {
+            return TokenOutcome.EXPIRED;
+        }
+        if (cause instanceof SignatureException) {
+            return TokenOutcome.BAD_SIGNATURE;
+        }
+        return TokenOutcome.MALFORMED;
+    }
+
+    private Timer authManagerTimer(String outcome) {
+        return Timer.builder("auth.manager.authenticate")
+                .description("AuthenticationManager.authenticate")
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    private Timer loginTimer(String outcome) {
+        return Timer.builder("auth.login")
+                .description("SecurityService.authenticate")
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    private Timer passwordHashTimer(String operation) {
+        return Timer.builder("auth.password.hash")
+                .description("PBKDF2 hashing time on the crypto pool")
+                .tag("operation", operation)
+                .register(registry);
+    }
+}
@@ -0,0 +1,124 @@
+package net.proselyte.webfluxsecurity.metrics;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Время стадий аутентификации одного запроса для заголовка Server-Timing
+ * и лога медленных запросов.
+ * <p>
+ * Создается ServerTimingWebFilter на каждый запрос и лежит в контексте Reactor
+ * под ключом CONTEXT_KEY; стадии в него пишет SecurityMetrics. Стадии могут
+ * вкладываться друг в друга (jwt внутри token, db внутри auth), поэтому их сумма
+ * не равна total.
+ */
+public final class ServerTiming {
+
+    public static final Class<ServerTiming> CONTEXT_KEY = ServerTiming.class;
+
+    /**
+     * Стадии запроса. name - имя метрики в Server-Timing.
+     */
+    public enum Stage {
+        /**
+         * Заголовок Authorization до Authentication целиком (конвертер).
+         */
+        TOKEN("token"),
+        /**
+         * Проверка подписи и разбор JWT (HmacTokenCodec или JwtHandler.check).
+         */
+        JWT("jwt"),
+        /**
+         * AuthenticationManager.authenticate (состояние пользователя).
+         */
+        AUTH("auth"),
+        /**
+         * Хэширование пароля, вместе с ожиданием в очереди крипто-пула.
+         */
+        PASSWORD("password"),
+        /**
+         * Запросы в БД через UserService (сумма по всем запросам).
+         */
+        DB("db");
+
+        private final String metricName;
+
+        Stage(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final AtomicLongArray nanos = new AtomicLongArray(STAGES.length);
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(STAGES.length);
+
+    /**
+     * Добавляет время стадии (стадия может выполняться несколько раз за запрос).
+     *
+     * @param stage   стадия
+     * @param elapsed время в наносекундах
+     */
+    void record(Stage stage, long elapsed) {
+        nanos.addAndGet(stage.ordinal(), elapsed);
+        counts.incrementAndGet(stage.ordinal());
+    }
+
+    /**
+     * Значение заголовка: token;dur=0.215, auth;dur=1.042, total;dur=3.518 (миллисекунды).
+     * Стадии, которых в запросе не было, не пишем.
+     *
+     * @param totalNanos время запроса до отправки ответа
+     * @return значение заголовка Server-Timing
+     */
+    String header(long totalNanos) {
+        StringBuilder header = new StringBuilder(128);
+        for (Stage stage : STAGES) {
+            if (counts.get(stage.ordinal()) > 0) {
+                header.append(stage.metricName).append(";dur=");
+                appendMillis(header, nanos.get(stage.ordinal()));
+                header.append(", ");
+            }
+        }
+        header.append("total;dur=");
+        appendMillis(header, totalNanos);
+        return header.toString();
+    }
+
+    /**
+     * Поля для лога в виде key=value: token_ms=0.215 db_ms=1.310 db_calls=2.
+     *
+     * @return строка полей
+     */
+    String logFields() {
+        StringBuilder fields = new StringBuilder(128);
+        for (Stage stage : STAGES) {
+            int count = counts.get(stage.ordinal());
+            if (count > 0) {
+                if (fields.length() > 0) {
+                    fields.append(' ');
+                }
+                fields.append(stage.metricName).append("_ms=");
+                appendMillis(fields, nanos.get(stage.ordinal()));
+                fields.append(' ').append(stage.metricName).append("_calls=").append(count);
+            }
+        }
+        return fields.toString();
+    }
+
+    /**
+     * Миллисекунды с тремя знаками после точки, без String.format.
+     */
+    static void appendMillis(StringBuilder sb, long nanos) {
+        long micros = Math.max(0, nanos) / 1_000;
+        long fraction = micros % 1_000;
+        sb.append(micros / 1_000).append('.');
+        if (fraction < 100) {
+            sb.append('0');
+        }
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+}
@@ -0,0 +1,91 @@
+package net.proselyte.webfluxsecurity.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Заголовок Server-Timing с разбивкой времени запроса по стадиям аутентификации
+ * (security.server-timing.enabled) и лог медленных запросов.
+ * <p>
+ * Фильтр стоит раньше цепочки Spring Security и кладет в контекст Reactor
+ * ServerTiming, в который SecurityMetrics пишет время стадий. Заголовок
+ * добавляется перед отправкой ответа (beforeCommit), поэтому есть и у ошибок.
+ * <p>
+ * Если выключено, фильтр сразу передает запрос дальше, а SecurityMetrics
+ * не оборачивает ни одной цепочки - накладных расходов нет.
+ * <p>
+ * Заголовок показывает клиенту, например, было ли хэширование пароля при логине,
+ * поэтому на публичном периметре его лучше не включать.
+ */
+@Slf4j
+@Component
+public class ServerTimingWebFilter implements WebFilter, Ordered {
+
+    public static final String SERVER_TIMING = "Server-Timing";
+    /**
+     * Раньше WebFilterChainProxy Spring Security (-100).
+     */
+    private static final int ORDER = -200;
+
+    private final boolean enabled;
+    /**
+     * 0 - медленные запросы не логируем.
+     */
+    private final long slowRequestNanos;
+
+    public ServerTimingWebFilter(@Value("${security.server-timing.enabled}") boolean enabled,
+                                 @Value("${security.server-timing.slow-request-threshold}") Duration slowRequestThreshold) {
+        this.enabled = enabled;
+        this.slowRequestNanos = slowRequestThreshold.toNanos();
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if (!enabled) {
+            return chain.filter(exchange);
+        }
+        long start = System.nanoTime();
+        ServerTiming timing = new ServerTiming();
+        ServerHttpResponse response = exchange.getResponse();
+        response.beforeCommit(() -> {
+            response.getHeaders().add(SERVER_TIMING, timing.header(System.nanoTime() - start));
+            return Mono.empty();
+        });
+        Mono<Void> result = chain.filter(exchange)
+                .contextWrite(context -> context.put(ServerTiming.CONTEXT_KEY, timing));
+        if (slowRequestNanos <= 0) {
+            return result;
+        }
+        return result.doFinally(signal -> logIfSlow(exchange, timing, System.nanoTime() - start));
+    }
+
+    @Override
+    public int getOrder() {
+        return ORDER;
+    }
+
+    /**
+     * Одна строка key=value на медленный запрос - ее легко разобрать сборщиком логов.
+     */
+    private void logIfSlow(ServerWebExchange exchange, ServerTiming timing, long totalNanos) {
+        if (totalNanos < slowRequestNanos) {
+            return;
+        }
+        StringBuilder total = new StringBuilder(12);
+        ServerTiming.appendMillis(total, totalNanos);
+        log.warn("IN filter - slow request: method={} path={} status={} total_ms={} {}",
+                exchange.getRequest().getMethod(),
+                exchange.getRequest().getPath().value(),
+                exchange.getResponse().getStatusCode() != null ? exchange.getResponse().getStatusCode().value() : 0,
+                total, timing.logFields());
+    }
+}
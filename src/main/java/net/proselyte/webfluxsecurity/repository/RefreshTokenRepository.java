@@ -0,0 +1,83 @@
+package net.proselyte.webfluxsecurity.repository;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Использованные и отозванные refresh-токены в БД (таблица used_refresh_tokens).
+ * <p>
+ * Refresh-токен одноразовый. Если помнить использованные jti только в памяти
+ * (как RevocationIndex для access-токенов), то за балансировщиком тот же токен можно
+ * обменять еще раз на другом узле. Поэтому jti пишем в общую БД: вставка
+ * с ON CONFLICT DO NOTHING атомарна, и из параллельных обменов одного токена
+ * на любых узлах строку вставит только один.
+ * <p>
+ * Строка нужна только до exp токена. Протухшие строки удаляем попутно,
+ * не чаще раза в jwt.refresh.cleanup-interval на узел.
+ */
+@Slf4j
+@Repository
+public class RefreshTokenRepository {
+
+    private static final String INSERT = "INSERT INTO used_refresh_tokens (jti, expires_at) "
+            + "VALUES (:jti, :expiresAt) ON CONFLICT (jti) DO NOTHING";
+    private static final String DELETE_EXPIRED = "DELETE FROM used_refresh_tokens WHERE expires_at < :now";
+
+    private final DatabaseClient databaseClient;
+    private final Clock clock;
+    private final long cleanupIntervalMillis;
+    private final AtomicLong nextCleanup;
+
+    public RefreshTokenRepository(DatabaseClient databaseClient, Clock clock,
+                                  @Value("${jwt.refresh.cleanup-interval}") Duration cleanupInterval) {
+        this.databaseClient = databaseClient;
+        this.clock = clock;
+        this.cleanupIntervalMillis = Math.max(1, cleanupInterval.toMillis());
+        this.nextCleanup = new AtomicLong(clock.millis() + cleanupIntervalMillis);
+    }
+
+    /**
+     * Помечает refresh-токен использованным (или отозванным).
+     *
+     * @param jti       jti токена
+     * @param expiresAt exp токена в миллисекундах
+     * @return true, если токен помечен сейчас, false - если он уже был использован или отозван
+     */
+    public Mono<Boolean> markUsed(String jti, long expiresAt) {
+        return databaseClient.sql(INSERT)
+                .bind("jti", jti)
+                .bind("expiresAt", expiresAt)
+                .fetch()
+                .rowsUpdated()
+                .map(rows -> rows > 0)
+                .flatMap(marked -> cleanupIfDue().thenReturn(marked));
+    }
+
+    /**
+     * Удаляет протухшие строки, если подошло время. Ошибка удаления на обмен токена не влияет.
+     */
+    private Mono<Void> cleanupIfDue() {
+        long now = clock.millis();
+        long due = nextCleanup.get();
+        if (now < due || !nextCleanup.compareAndSet(due, now + cleanupIntervalMillis)) {
+            return Mono.empty();
+        }
+        return databaseClient.sql(DELETE_EXPIRED)
+                .bind("now", now)
+                .fetch()
+                .rowsUpdated()
+                .doOnNext(deleted -> log.info("IN cleanupIfDue - deleted {} expired refresh tokens", deleted))
+                .onErrorResume(e -> {
+                    log.warn("IN cleanupIfDue - failed to delete expired refresh tokens", e);
+                    return Mono.empty();
+                })
+                .then();
+    }
+}
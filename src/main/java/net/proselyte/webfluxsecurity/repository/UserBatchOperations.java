@@ -0,0 +1,37 @@
+package net.proselyte.webfluxsecurity.repository;
+
+import net.proselyte.webfluxsecurity.entity.UserEntity;
+import net.proselyte.webfluxsecurity.entity.UserRole;
+import net.proselyte.webfluxsecurity.entity.UserStatus;
+import reactor.core.publisher.Flux;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Пакетные операции над пользователями, которых нет в R2dbcRepository.
+ * Реализация - UserBatchOperationsImpl, подключается к UserRepository как фрагмент.
+ */
+public interface UserBatchOperations {
+
+    /**
+     * Вставляет пользователей одним многострочным INSERT.
+     * Пользователи с уже занятым username (в БД или раньше в этом же пакете) пропускаются.
+     *
+     * @param users пользователи без id
+     * @return вставленные пользователи с id
+     */
+    Flux<UserEntity> insertIgnoringDuplicates(List<UserEntity> users);
+
+    /**
+     * Меняет enabled и/или роль пользователей одним UPDATE ... WHERE id = ANY(:ids).
+     * Строки, в которых менять нечего, не обновляются и в результат не попадают.
+     *
+     * @param ids       id пользователей
+     * @param enabled   новое значение enabled или null - не менять
+     * @param role      новая роль или null - не менять
+     * @param updatedAt время изменения (updated_at)
+     * @return новое состояние измененных пользователей
+     */
+    Flux<UserStatus> updateStatus(List<Long> ids, Boolean enabled, UserRole role, LocalDateTime updatedAt);
+}
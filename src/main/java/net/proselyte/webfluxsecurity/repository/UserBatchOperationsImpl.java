@@ -0,0 +1,107 @@
+package net.proselyte.webfluxsecurity.repository;
+
+import lombok.RequiredArgsConstructor;
+import net.proselyte.webfluxsecurity.entity.UserEntity;
+import net.proselyte.webfluxsecurity.entity.UserRole;
+import net.proselyte.webfluxsecurity.entity.UserStatus;
+import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.core.publisher.Flux;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Пакетные операции через DatabaseClient: один запрос и один round trip на весь пакет.
+ */
+@RequiredArgsConstructor
+public class UserBatchOperationsImpl implements UserBatchOperations {
+
+    private static final String INSERT = "INSERT INTO users "
+            + "(username, password, role, first_name, last_name, enabled, created_at, updated_at) VALUES ";
+    private static final String ON_CONFLICT = " ON CONFLICT (username) DO NOTHING RETURNING id, username";
+
+    private final DatabaseClient databaseClient;
+
+    @Override
+    public Flux<UserEntity> insertIgnoringDuplicates(List<UserEntity> users) {
+        if (users.isEmpty()) {
+            return Flux.empty();
+        }
+        StringBuilder sql = new StringBuilder(INSERT.length() + ON_CONFLICT.length() + users.size() * 64)
+                .append(INSERT);
+        for (int i = 0; i < users.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append("(:username").append(i)
+                    .append(", :password").append(i)
+                    .append(", :role").append(i)
+                    .append(", :firstName").append(i)
+                    .append(", :lastName").append(i)
+                    .append(", :enabled").append(i)
+                    .append(", :createdAt").append(i)
+                    .append(", :updatedAt").append(i)
+                    .append(')');
+        }
+        sql.append(ON_CONFLICT);
+
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sql.toString());
+        //если в пакете один username встречается дважды, вставится первая запись
+        Map<String, UserEntity> byUsername = new HashMap<>();
+        for (int i = 0; i < users.size(); i++) {
+            UserEntity user = users.get(i);
+            byUsername.putIfAbsent(user.getUsername(), user);
+            spec = spec.bind("username" + i, user.getUsername())
+                    .bind("password" + i, user.getPassword())
+                    .bind("role" + i, user.getRole().name())
+                    .bind("firstName" + i, user.getFirstName())
+                    .bind("lastName" + i, user.getLastName())
+                    .bind("enabled" + i, user.isEnabled())
+                    .bind("createdAt" + i, user.getCreatedAt())
+                    .bind("updatedAt" + i, user.getUpdatedAt());
+        }
+        return spec.map((row, metadata) -> byUsername.get(row.get("username", String.class)).toBuilder()
+                        .id(row.get("id", Long.class))
+                        .build())
+                .all();
+    }
+
+    @Override
+    public Flux<UserStatus> updateStatus(List<Long> ids, Boolean enabled, UserRole role, LocalDateTime updatedAt) {
+        if (ids.isEmpty() || (enabled == null && role == null)) {
+            return Flux.empty();
+        }
+        StringBuilder sql = new StringBuilder(160).append("UPDATE users SET updated_at = :updatedAt");
+        if (enabled != null) {
+            sql.append(", enabled = :enabled");
+        }
+        if (role != null) {
+            sql.append(", role = :role");
+        }
+        //весь список - один параметр-массив: текст запроса не зависит от размера пакета
+        sql.append(" WHERE id = ANY(:ids) AND (");
+        if (enabled != null) {
+            sql.append("enabled <> :enabled");
+        }
+        if (role != null) {
+            sql.append(enabled != null ? " OR " : "").append("role <> :role");
+        }
+        sql.append(") RETURNING id, role, enabled");
+
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sql.toString())
+                .bind("updatedAt", updatedAt)
+                .bind("ids", ids.toArray(new Long[0]));
+        if (enabled != null) {
+            spec = spec.bind("enabled", enabled);
+        }
+        if (role != null) {
+            spec = spec.bind("role", role.name());
+        }
+        return spec.map((row, metadata) -> new UserStatus(row.get("id", Long.class),
+                        UserRole.valueOf(row.get("role", String.class)),
+                        Boolean.TRUE.equals(row.get("enabled", Boolean.class))))
+                .all();
+    }
+}
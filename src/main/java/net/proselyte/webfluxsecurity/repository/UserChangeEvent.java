@@ -0,0 +1,31 @@
+package net.proselyte.webfluxsecurity.repository;
+
+import net.proselyte.webfluxsecurity.entity.UserRole;
+
+/**
+ * Изменение пользователя из канала users_changed (триггер users_notify_change).
+ *
+ * @param op        что произошло
+ * @param id        id пользователя (null для RESYNC)
+ * @param username  username после изменения (для DELETE - удаленного пользователя)
+ * @param enabled   enabled после изменения
+ * @param role      роль после изменения
+ * @param changedAt время изменения по часам БД, мс от эпохи
+ */
+public record UserChangeEvent(Operation op, Long id, String username, Boolean enabled, UserRole role,
+                              long changedAt) {
+
+    public enum Operation {
+        UPDATE,
+        DELETE,
+        /**
+         * Подписка на канал (пере)установлена: пока соединения не было, изменения
+         * могли пройти мимо - все, что закэшировано о пользователях, надо сбросить.
+         */
+        RESYNC
+    }
+
+    static UserChangeEvent resync(long now) {
+        return new UserChangeEvent(Operation.RESYNC, null, null, null, null, now);
+    }
+}
@@ -0,0 +1,228 @@
+package net.proselyte.webfluxsecurity.repository;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.r2dbc.postgresql.api.Notification;
+import io.r2dbc.postgresql.api.PostgresqlConnection;
+import io.r2dbc.postgresql.api.PostgresqlResult;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.r2dbc.R2dbcProperties;
+import org.springframework.boot.r2dbc.ConnectionFactoryBuilder;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.retry.Retry;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Поток изменений пользователей из Postgres (LISTEN users_changed).
+ * <p>
+ * Триггер на users шлет pg_notify при изменении username, role, enabled и при удалении
+ * (db/vendor/postgresql). Здесь держим отдельное от пула соединение с LISTEN и отдаем
+ * уведомления как Flux&lt;UserChangeEvent&gt; - на него подписываются кэши в памяти
+ * (UserService), так что изменение, сделанное на любом узле, сбрасывает кэши на всех
+ * узлах без опроса БД.
+ * <p>
+ * Соединение отдельное, потому что LISTEN живет, пока живет соединение, а пул свои
+ * соединения пересоздает (max-life-time) и раздает другим запросам. При обрыве
+ * переподключаемся с экспоненциальной задержкой; после каждого (пере)подключения
+ * отдаем RESYNC - уведомления, пришедшие без слушателя, Postgres не хранит.
+ * <p>
+ * Канал не настраивается: его имя зашито в триггер миграции V2.
+ * <p>
+ * Метрики: users.change-feed.lag - задержка доставки (часы БД против часов узла,
+ * поэтому расхождение часов входит в значение), users.change-feed.events по op,
+ * users.change-feed.reconnects и users.change-feed.connected.
+ */
+@Slf4j
+@Component
+public class UserChangeFeed implements SmartLifecycle {
+
+    /**
+     * Канал, в который шлет триггер users_notify_change (db/vendor/postgresql/V2).
+     */
+    static final String CHANNEL = "users_changed";
+
+    private final Sinks.Many<UserChangeEvent> sink = Sinks.many().multicast().directBestEffort();
+    private final R2dbcProperties properties;
+    private final ObjectMapper objectMapper;
+    private final Clock clock;
+    private final boolean enabled;
+    private final Duration minBackoff;
+    private final Duration maxBackoff;
+
+    private final Timer lag;
+    private final Map<UserChangeEvent.Operation, Counter> events = new EnumMap<>(UserChangeEvent.Operation.class);
+    private final Counter reconnects;
+    private final AtomicBoolean connected = new AtomicBoolean();
+    /**
+     * Неудачных попыток подряд; сбрасывается, как только LISTEN выполнен.
+     */
+    private final AtomicInteger failuresInARow = new AtomicInteger();
+
+    private volatile Disposable subscription;
+
+    public UserChangeFeed(R2dbcProperties properties, ObjectMapper objectMapper, Clock clock, MeterRegistry registry,
+                          @Value("${users.change-feed.enabled}") boolean enabled,
+                          @Value("${users.change-feed.min-backoff}") Duration minBackoff,
+                          @Value("${users.change-feed.max-backoff}") Duration maxBackoff) {
+        this.properties = properties;
+        this.objectMapper = objectMapper;
+        this.clock = clock;
+        this.enabled = enabled;
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+        this.lag = Timer.builder("users.change-feed.lag")
+                .description("Delay between a users row change in the database and its notification on this node")
+                .register(registry);
+        for (UserChangeEvent.Operation op : UserChangeEvent.Operation.values()) {
+            events.put(op, Counter.builder("users.change-feed.events")
+                    .tag("op", op.name().toLowerCase())
+                    .register(registry));
+        }
+        this.reconnects = Counter.builder("users.change-feed.reconnects")
+                .description("Reconnects of the LISTEN connection")
+                .register(registry);
+        Gauge.builder("users.change-feed.connected", connected, c -> c.get() ? 1 : 0)
+                .description("1 if the LISTEN connection is established")
+                .register(registry);
+    }
+
+    /**
+     * Горячий поток изменений. Подписчик получает события, пришедшие после подписки;
+     * если он не успевает их разбирать, лишние события для него отбрасываются
+     * (RESYNC на следующем переподключении это не компенсирует, поэтому подписчик
+     * должен быть быстрым - сбросить запись кэша и всё).
+     *
+     * @return поток изменений пользователей
+     */
+    public Flux<UserChangeEvent> changes() {
+        return sink.asFlux();
+    }
+
+    @Override
+    public void start() {
+        if (!enabled) {
+            log.info("IN start - users change feed is disabled");
+            return;
+        }
+        ConnectionFactory connectionFactory = ConnectionFactoryBuilder.withUrl(properties.getUrl())
+                .username(properties.getUsername())
+                .password(properties.getPassword())
+                .build();
+        subscription = listen(connectionFactory)
+                .retryWhen(Retry.from(signals -> signals.concatMap(signal -> {
+                    Throwable failure = signal.failure();
+                    //не Postgres - переподключение не поможет
+                    if (failure instanceof UnsupportedOperationException) {
+                        return Mono.<Retry.RetrySignal>error(failure);
+                    }
+                    int attempt = failuresInARow.incrementAndGet();
+                    Duration delay = backoff(attempt);
+                    reconnects.increment();
+                    log.warn("IN listen - LISTEN {} lost, reconnecting in {} ms (attempt {}): {}",
+                            CHANNEL, delay.toMillis(), attempt, failure.toString());
+                    return Mono.delay(delay).thenReturn(signal);
+                })))
+                .subscribe(this::publish, e -> log.error("IN listen - users change feed stopped", e));
+    }
+
+    /**
+     * Задержка перед попыткой: min-backoff * 2^(attempt - 1), не больше max-backoff,
+     * с разбросом до 50% вниз, чтобы узлы не переподключались к БД все разом.
+     *
+     * @param attempt номер неудачной попытки подряд, с 1
+     * @return задержка перед переподключением
+     */
+    private Duration backoff(int attempt) {
+        Duration delay = attempt > 30 ? maxBackoff : minBackoff.multipliedBy(1L << (attempt - 1));
+        if (delay.compareTo(maxBackoff) > 0) {
+            delay = maxBackoff;
+        }
+        long jitter = (long) (delay.toMillis() * 0.5 * ThreadLocalRandom.current().nextDouble());
+        return delay.minusMillis(jitter);
+    }
+
+    @Override
+    public void stop() {
+        Disposable current = subscription;
+        if (current != null) {
+            current.dispose();
+            subscription = null;
+        }
+        connected.set(false);
+    }
+
+    @Override
+    public boolean isRunning() {
+        Disposable current = subscription;
+        return current != null && !current.isDisposed();
+    }
+
+    private Flux<Notification> listen(ConnectionFactory connectionFactory) {
+        return Flux.usingWhen(connectionFactory.create(),
+                        connection -> {
+                            if (!(connection instanceof PostgresqlConnection postgres)) {
+                                return Flux.error(new UnsupportedOperationException(
+                                        "LISTEN/NOTIFY requires PostgreSQL, got " + connection.getMetadata().getDatabaseProductName()));
+                            }
+                            return postgres.createStatement("LISTEN " + CHANNEL)
+                                    .execute()
+                                    .flatMap(PostgresqlResult::getRowsUpdated)
+                                    .then(Mono.fromRunnable(this::onListening))
+                                    .thenMany(postgres.getNotifications())
+                                    //поток закончился без ошибки - соединение закрыто, тоже переподключаемся
+                                    .concatWith(Mono.error(() -> new IllegalStateException("Notification stream completed")));
+                        },
+                        Connection::close)
+                .doOnError(e -> connected.set(false));
+    }
+
+    private void onListening() {
+        connected.set(true);
+        //подключились - следующий обрыв снова ждет min-backoff
+        failuresInARow.set(0);
+        log.info("IN onListening - listening on channel {}", CHANNEL);
+        emit(UserChangeEvent.resync(clock.millis()));
+    }
+
+    private void publish(Notification notification) {
+        String payload = notification.getParameter();
+        if (payload == null) {
+            return;
+        }
+        UserChangeEvent event;
+        try {
+            event = objectMapper.readValue(payload, UserChangeEvent.class);
+        } catch (JsonProcessingException e) {
+            log.warn("IN publish - cannot parse notification on {}: {}", notification.getName(), payload, e);
+            return;
+        }
+        lag.record(Math.max(0, clock.millis() - event.changedAt()), TimeUnit.MILLISECONDS);
+        emit(event);
+    }
+
+    private void emit(UserChangeEvent event) {
+        events.get(event.op()).increment();
+        //источник один (поток уведомлений), так что FAIL_NON_SERIALIZED здесь не бывает
+        sink.tryEmitNext(event);
+    }
+}
@@ -1,12 +1,73 @@
 package net.proselyte.webfluxsecurity.repository;
 
+import net.proselyte.webfluxsecurity.entity.UserCredentials;
 import net.proselyte.webfluxsecurity.entity.UserEntity;
+import net.proselyte.webfluxsecurity.entity.UserStatus;
+import org.springframework.data.r2dbc.repository.Modifying;
+import org.springframework.data.r2dbc.repository.Query;
 import org.springframework.data.r2dbc.repository.R2dbcRepository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.LocalDateTime;
+
 /*Реактивный репозиторий.
 * Mono - реактивная надстройка над возвращаемым типом.*/
-public interface UserRepository extends R2dbcRepository<UserEntity, Long> {
+public interface UserRepository extends R2dbcRepository<UserEntity, Long>, UserBatchOperations {
 
     Mono<UserEntity> findByUsername(String username);
+
+    /**
+     * Данные для логина - только те столбцы, что лежат в покрывающем индексе
+     * users_username_credentials_idx (index-only scan, без чтения строки таблицы).
+     *
+     * @param username username, точное совпадение
+     * @return данные для логина
+     */
+    @Query("SELECT id, username, password, role, enabled FROM users WHERE username = :username")
+    Mono<UserCredentials> findCredentialsByUsername(String username);
+
+    /**
+     * То же без учета регистра (индекс users_lower_username_credentials_idx).
+     * Если есть и "Alice", и "alice", берем точное совпадение.
+     *
+     * @param username username в любом регистре
+     * @return данные для логина
+     */
+    @Query("SELECT id, username, password, role, enabled FROM users WHERE lower(username) = lower(:username) "
+            + "ORDER BY username = :username DESC LIMIT 1")
+    Mono<UserCredentials> findCredentialsByUsernameIgnoreCase(String username);
+
+    /**
+     * Состояние пользователя для проверки запроса (индекс users_id_status_idx).
+     *
+     * @param id id пользователя
+     * @return id, роль и enabled
+     */
+    @Query("SELECT id, role, enabled FROM users WHERE id = :id")
+    Mono<UserStatus> findStatusById(Long id);
+
+    /**
+     * Страница пользователей после заданного id (keyset-пагинация по первичному ключу).
+     * Хэш пароля не выбираем - в энтити password будет null.
+     *
+     * @param afterId id последнего пользователя предыдущей страницы (0 - с начала)
+     * @param limit   размер страницы
+     * @return пользователи по возрастанию id
+     */
+    @Query("SELECT id, username, role, first_name, last_name, enabled, created_at, updated_at "
+            + "FROM users WHERE id > :afterId ORDER BY id LIMIT :limit")
+    Flux<UserEntity> findPageAfter(Long afterId, int limit);
+
+    /**
+     * Замена хэша пароля, только если в БД всё еще лежит старый хэш
+     * (чтобы не затереть пароль, который успели поменять параллельно).
+     * updated_at обновляем вместе с паролем.
+     *
+     * @return количество обновленных строк
+     */
+    @Modifying
+    @Query("UPDATE users SET password = :newPassword, updated_at = :updatedAt "
+            + "WHERE id = :id AND password = :oldPassword")
+    Mono<Integer> updatePassword(Long id, String oldPassword, String newPassword, LocalDateTime updatedAt);
 }
@@ -0,0 +1,179 @@
+package net.proselyte.webfluxsecurity.rest;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.proselyte.webfluxsecurity.dto.AuthResponseDto;
+import net.proselyte.webfluxsecurity.dto.BulkRegistrationResultDto;
+import net.proselyte.webfluxsecurity.dto.BulkUpdateResultDto;
+import net.proselyte.webfluxsecurity.dto.UserDto;
+import net.proselyte.webfluxsecurity.entity.UserRole;
+import net.proselyte.webfluxsecurity.exception.ApiException;
+import net.proselyte.webfluxsecurity.mapper.UserMapper;
+import net.proselyte.webfluxsecurity.security.CustomPrincipal;
+import net.proselyte.webfluxsecurity.security.SecurityService;
+import net.proselyte.webfluxsecurity.service.UserService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+
+/**
+ * Администрирование пользователей. Доступ только для ADMIN (см. WebSecurityConfig).
+ */
+@Slf4j
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("/api/v1/admin/users")
+public class AdminUserRestControllerV1 {
+
+    private final UserService userService;
+    private final UserMapper userMapper;
+    private final SecurityService securityService;
+
+    /**
+     * Размер страницы по умолчанию и максимальный.
+     */
+    @Value("${users.listing.page-size}")
+    private int defaultPageSize;
+    @Value("${users.listing.max-page-size}")
+    private int maxPageSize;
+    /**
+     * Сколько access-токенов можно выпустить одним запросом.
+     */
+    @Value("${jwt.batch.max-size}")
+    private int maxTokenBatchSize;
+
+    /**
+     * Список пользователей потоком NDJSON, по возрастанию id.
+     * Чтобы продолжить прерванную выгрузку, передайте after = id последней полученной записи.
+     *
+     * @param after    id, после которого начинать (0 - с начала)
+     * @param pageSize сколько строк читать из БД за один запрос
+     * @return поток dto пользователей
+     */
+    @GetMapping(produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<UserDto> getUsers(@RequestParam(defaultValue = "0") long after,
+                                  @RequestParam(name = "page_size", required = false) Integer pageSize) {
+        return userService.streamUsers(after, pageSize(pageSize))
+                .map(userMapper::map);
+    }
+
+    /**
+     * То же в виде Server-Sent Events: id события - id пользователя,
+     * поэтому после обрыва клиент может передать его в Last-Event-ID.
+     *
+     * @param lastEventId id последнего полученного события
+     * @param after       id, после которого начинать, если Last-Event-ID нет
+     * @param pageSize    сколько строк читать из БД за один запрос
+     * @return поток событий
+     */
+    @GetMapping(produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<UserDto>> getUserEvents(
+            @RequestHeader(name = "Last-Event-ID", required = false) Long lastEventId,
+            @RequestParam(defaultValue = "0") long after,
+            @RequestParam(name = "page_size", required = false) Integer pageSize) {
+        return userService.streamUsers(lastEventId != null ? lastEventId : after, pageSize(pageSize))
+                .map(user -> ServerSentEvent.builder(userMapper.map(user))
+                        .id(user.getId().toString())
+                        .build());
+    }
+
+    /**
+     * Пакетная регистрация пользователей.
+     * На вход - NDJSON, по одному UserDto на строку; на выход - NDJSON с результатом
+     * по каждой записи (CREATED, DUPLICATE, INVALID, FAILED) по мере записи в БД.
+     *
+     * @param users поток dto пользователей
+     * @return поток результатов
+     */
+    @PostMapping(path = "/bulk", consumes = MediaType.APPLICATION_NDJSON_VALUE,
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<BulkRegistrationResultDto> registerUsers(@RequestBody Flux<UserDto> users) {
+        return userService.registerUsers(users.map(userMapper::map));
+    }
+
+    /**
+     * Пакетный выпуск access-токенов для межсервисных вызовов от имени пользователей.
+     * На вход - JSON-массив id, на выход - NDJSON с токеном на каждого активного
+     * пользователя (отключенные и несуществующие пропускаются). Refresh-токены не выдаются.
+     * Каждый выпуск пишется в лог: кто из админов и для кого выпустил токены.
+     *
+     * @param authentication аутентификация админа
+     * @param userIds        id пользователей
+     * @return поток токенов
+     */
+    @PostMapping(path = "/tokens", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<AuthResponseDto> issueTokens(Authentication authentication, @RequestBody List<Long> userIds) {
+        CustomPrincipal admin = (CustomPrincipal) authentication.getPrincipal();
+        if (userIds.size() > maxTokenBatchSize) {
+            log.warn("IN issueTokens - admin id: {} ({}) requested {} tokens, max: {}",
+                    admin.getId(), admin.getName(), userIds.size(), maxTokenBatchSize);
+            return Flux.error(new ApiException("Too many users in one batch, max: " + maxTokenBatchSize,
+                    "PROSELYTE_BATCH_TOO_LARGE"));
+        }
+        log.info("IN issueTokens - admin id: {} ({}) issues access tokens for user ids: {}",
+                admin.getId(), admin.getName(), userIds);
+        return securityService.issueAccessTokens(userIds)
+                .map(AuthRestControllerV1::toResponse);
+    }
+
+    /**
+     * Пакетное включение пользователей.
+     * На вход - id потоком NDJSON (по одному на строку) или JSON-массивом,
+     * на выход - NDJSON с результатом по каждому пакету.
+     *
+     * @param userIds поток id пользователей
+     * @return поток результатов по пакетам
+     */
+    @PostMapping(path = "/enable", consumes = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE},
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<BulkUpdateResultDto> enableUsers(@RequestBody Flux<Long> userIds) {
+        return userService.updateUsers(userIds, true, null);
+    }
+
+    /**
+     * Пакетное отключение пользователей. Их токены перестают приниматься
+     * на следующем же запросе.
+     *
+     * @param userIds поток id пользователей
+     * @return поток результатов по пакетам
+     */
+    @PostMapping(path = "/disable", consumes = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE},
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<BulkUpdateResultDto> disableUsers(@RequestBody Flux<Long> userIds) {
+        return userService.updateUsers(userIds, false, null);
+    }
+
+    /**
+     * Пакетная смена роли. Права по уже выданным токенам меняются
+     * на следующем же запросе (см. AuthenticationManager).
+     *
+     * @param role    новая роль
+     * @param userIds поток id пользователей
+     * @return поток результатов по пакетам
+     */
+    @PostMapping(path = "/role/{role}",
+            consumes = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE},
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<BulkUpdateResultDto> changeRole(@PathVariable UserRole role, @RequestBody Flux<Long> userIds) {
+        return userService.updateUsers(userIds, null, role);
+    }
+
+    private int pageSize(Integer requested) {
+        if (requested == null || requested <= 0) {
+            return defaultPageSize;
+        }
+        return Math.min(requested, maxPageSize);
+    }
+}
@@ -3,24 +3,34 @@ package net.proselyte.webfluxsecurity.rest;
 import lombok.RequiredArgsConstructor;
 import net.proselyte.webfluxsecurity.dto.AuthRequestDto;
 import net.proselyte.webfluxsecurity.dto.AuthResponseDto;
+import net.proselyte.webfluxsecurity.dto.RefreshRequestDto;
 import net.proselyte.webfluxsecurity.dto.UserDto;
 import net.proselyte.webfluxsecurity.entity.UserEntity;
 import net.proselyte.webfluxsecurity.mapper.UserMapper;
-import net.proselyte.webfluxsecurity.security.CustomPrincipal;
+import net.proselyte.webfluxsecurity.security.CurrentUser;
+import net.proselyte.webfluxsecurity.security.LoginThrottle;
 import net.proselyte.webfluxsecurity.security.SecurityService;
+import net.proselyte.webfluxsecurity.security.TokenDetails;
 import net.proselyte.webfluxsecurity.service.UserService;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Mono;
 
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
 @RestController
 @RequiredArgsConstructor
 @RequestMapping("/api/v1/auth")
 public class AuthRestControllerV1 {
-    //инжектим три объекта SecurityService, UserService, UserMapper
+    //инжектим SecurityService, UserService, UserMapper и LoginThrottle
     private final SecurityService securityService;
     private final UserService userService;
     private final UserMapper userMapper;
+    private final LoginThrottle loginThrottle;
 
     /**
      * Метод регистрации пользователя.
@@ -40,38 +50,83 @@ public class AuthRestControllerV1 {
     /**
      * Метод вход пользователя по логину.
      *
-     * @param dto данные пользователя username и password
+     * @param dto     данные пользователя username и password
+     * @param request запрос, из него берем IP клиента для ограничения частоты логинов
      * @return dto аутентификации пользователя
      */
 
     @PostMapping("/login")
-    public Mono<AuthResponseDto> login(@RequestBody AuthRequestDto dto) {
-        //просим securityService аутентифицировать пользователя на основании
+    public Mono<AuthResponseDto> login(@RequestBody AuthRequestDto dto, ServerHttpRequest request) {
+        //сначала проверяем лимит попыток логина (до хэширования пароля),
+        //потом просим securityService аутентифицировать пользователя на основании
         //его username и password
-        return securityService.authenticate(dto.getUsername(), dto.getPassword())
+        return loginThrottle.acquire(dto.getUsername(), loginThrottle.clientIp(request))
+                .then(Mono.defer(() -> securityService.authenticate(dto.getUsername(), dto.getPassword())))
                 //если всё ОК, то возвращается расширенный токен
                 //и мы из него создаем dto аутентификации пользователя для ответа
-                .flatMap(tokenDetails -> Mono.just(
-                        AuthResponseDto.builder()
-                                .userId(tokenDetails.getUserId())
-                                .token(tokenDetails.getToken())
-                                .issuedAt(tokenDetails.getIssuedAt())
-                                .expiresAt(tokenDetails.getExpiresAt())
-                                .build()
-                ));
+                .map(AuthRestControllerV1::toResponse);
+    }
+
+    /**
+     * Метод обновления пары токенов по refresh-токену.
+     * Предъявленный refresh-токен после этого становится недействительным.
+     *
+     * @param dto refresh-токен
+     * @return dto аутентификации пользователя с новой парой токенов
+     */
+    @PostMapping("/refresh")
+    public Mono<AuthResponseDto> refresh(@RequestBody RefreshRequestDto dto) {
+        return securityService.refresh(dto.getRefreshToken())
+                .map(AuthRestControllerV1::toResponse);
+    }
+
+    /**
+     * Метод выхода: отзывает текущий access-токен и переданный refresh-токен.
+     *
+     * @param authentication аутентификация из контекста
+     * @param dto            refresh-токен (необязательно)
+     * @return пустой ответ
+     */
+    @PostMapping("/logout")
+    public Mono<Void> logout(Authentication authentication, @RequestBody(required = false) RefreshRequestDto dto) {
+        return securityService.logout(authentication, dto != null ? dto.getRefreshToken() : null);
+    }
+
+    static AuthResponseDto toResponse(TokenDetails tokenDetails) {
+        return AuthResponseDto.builder()
+                .userId(tokenDetails.getUserId())
+                .token(tokenDetails.getToken())
+                .issuedAt(tokenDetails.getIssuedAt())
+                .expiresAt(tokenDetails.getExpiresAt())
+                .refreshToken(tokenDetails.getRefreshToken())
+                .refreshExpiresAt(tokenDetails.getRefreshExpiresAt())
+                .build();
     }
 
     /**
      * Метод отдающий инфо по пользователю.
+     * <p>
+     * Пользователь приходит через CurrentUserArgumentResolver: за запрос его строка грузится
+     * из БД не больше одного раза (плюс запрос состояния при промахе кэша состояния). ETag строится из id и updated_at - если клиент
+     * пришел с тем же If-None-Match, отвечаем 304 без тела.
      *
-     * @param authentication аутентификация из контекста (поэтому не нужно добавлять @RequestBody)
+     * @param user пользователь текущего запроса (поэтому не нужно добавлять @RequestBody)
      * @return dto пользователя обернутый в Mono
      */
     @GetMapping("/info")
-    public Mono<UserDto> getUserInfo(Authentication authentication) {
-        CustomPrincipal customPrincipal = (CustomPrincipal) authentication.getPrincipal();
+    public Mono<ResponseEntity<UserDto>> getUserInfo(@CurrentUser UserEntity user) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache().cachePrivate());
+        if (user.getUpdatedAt() != null) {
+            //ResponseEntityResultHandler сам сверит ETag с If-None-Match и ответит 304
+            response.eTag(eTag(user));
+        }
+        return Mono.just(response.body(userMapper.map(user)));
+    }
 
-        return userService.getUserById(customPrincipal.getId())
-                .map(userMapper::map);
+    private static String eTag(UserEntity user) {
+        LocalDateTime updatedAt = user.getUpdatedAt();
+        return user.getId() + "-" + Long.toHexString(updatedAt.toEpochSecond(ZoneOffset.UTC))
+                + "." + Integer.toHexString(updatedAt.getNano());
     }
 }
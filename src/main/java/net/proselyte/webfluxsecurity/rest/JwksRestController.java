@@ -0,0 +1,40 @@
+package net.proselyte.webfluxsecurity.rest;
+
+import net.proselyte.webfluxsecurity.config.JwtSigningProperties;
+import net.proselyte.webfluxsecurity.security.JwtKeyRing;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+
+/**
+ * Публичные ключи проверки подписи токенов (JWKS).
+ * Другие сервисы забирают их отсюда и проверяют токены сами, без секрета и без запроса к нам.
+ * Ключи не меняются до рестарта, поэтому ответ собираем один раз.
+ */
+@RestController
+public class JwksRestController {
+
+    private final Map<String, Object> jwks;
+    private final CacheControl cacheControl;
+
+    public JwksRestController(JwtKeyRing keyRing, JwtSigningProperties properties) {
+        this.jwks = Map.of("keys", keyRing.toJwks());
+        this.cacheControl = CacheControl.maxAge(properties.getJwksMaxAge()).cachePublic();
+    }
+
+    /**
+     * Метод отдающий публичные ключи.
+     *
+     * @return JWK Set завернутый в Mono
+     */
+    @GetMapping("/.well-known/jwks.json")
+    public Mono<ResponseEntity<Map<String, Object>>> getJwks() {
+        return Mono.just(ResponseEntity.ok()
+                .cacheControl(cacheControl)
+                .body(jwks));
+    }
+}
@@ -0,0 +1,22 @@
+package net.proselyte.webfluxsecurity.security;
+
+import java.util.Locale;
+
+/**
+ * Режим аутентификации (security.auth-mode).
+ * <p>
+ * JWT - /login выдает пару JWT, каждый запрос проверяется по подписи.
+ * SESSION - /login выдает короткий непрозрачный токен (id сессии в памяти
+ * узла, см. ShardedSessionRepository); выход удаляет сессию сразу.
+ */
+public enum AuthMode {
+    JWT, SESSION;
+
+    /**
+     * @param value значение настройки (jwt, session), регистр не важен
+     * @return режим
+     */
+    public static AuthMode of(String value) {
+        return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -1,7 +1,8 @@
 package net.proselyte.webfluxsecurity.security;
 
 import lombok.RequiredArgsConstructor;
-import net.proselyte.webfluxsecurity.entity.UserEntity;
+import net.proselyte.webfluxsecurity.metrics.SecurityMetrics;
+import net.proselyte.webfluxsecurity.entity.UserStatus;
 import net.proselyte.webfluxsecurity.exception.UnauthorizedException;
 import net.proselyte.webfluxsecurity.service.UserService;
 import org.springframework.security.authentication.ReactiveAuthenticationManager;
@@ -17,17 +18,20 @@ import reactor.core.publisher.Mono;
 public class AuthenticationManager implements ReactiveAuthenticationManager {
 
     private final UserService userService;
+    private final SecurityMetrics securityMetrics;
 
     @Override
     public Mono<Authentication> authenticate(Authentication authentication) {
         //достаем из Authentication принципал (CustomPrincipal)
         CustomPrincipal principal = (CustomPrincipal) authentication.getPrincipal();
-        return userService.getUserById(principal.getId())
+        //состояние пользователя берем через ближний кэш (см. UserStatusCache)
+        return securityMetrics.timeAuthenticationManager(userService.getUserStatus(principal.getId())
                 //проверяем, что пользователь активный
-                .filter(UserEntity::isEnabled)
+                .filter(UserStatus::isEnabled)
                 //если нет то кидаем исключение
-                .switchIfEmpty(Mono.error(new UnauthorizedException("User disabled")))
-                //если всё ОК, то мапим всё на аутентификацию
-                .map(user -> authentication);
+                .switchIfEmpty(Mono.error(UnauthorizedException.USER_DISABLED))
+                //если всё ОК, то мапим всё на аутентификацию; права - по текущей роли,
+                //а не по роли из токена (роль могли сменить после выдачи токена)
+                .map(user -> UserAuthenticationBearer.withRole(authentication, user.getRole().name())));
     }
 }
@@ -1,6 +1,9 @@
 package net.proselyte.webfluxsecurity.security;
 
 import lombok.RequiredArgsConstructor;
+import net.proselyte.webfluxsecurity.exception.UnauthorizedException;
+import net.proselyte.webfluxsecurity.metrics.SecurityMetrics;
+import net.proselyte.webfluxsecurity.metrics.ServerTiming;
 import org.springframework.http.HttpHeaders;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.web.server.authentication.AuthenticationWebFilter;
@@ -25,6 +28,22 @@ public class BearerTokenServerAuthenticationConverter implements ServerAuthentic
     // передаем объект JwtHandler из вне через конструктор,
     // для удобства используем @RequiredArgsConstructor
     private final JwtHandler jwtHandler;
+    /**
+     * Быстрая проверка наших HS256 токенов; токены, которые он не узнал, проверяет jwtHandler.
+     */
+    private final HmacTokenCodec tokenCodec;
+    /**
+     * Кэш уже проверенных токенов (может быть выключен).
+     */
+    private final VerifiedTokenCache tokenCache;
+    /**
+     * Отозванные токены. Проверяем и для токенов из кэша.
+     */
+    private final RevocationIndex revocationIndex;
+    /**
+     * Метрики: время конвертации с результатом (нет токена, битый, протух, подпись, отозван, ок).
+     */
+    private final SecurityMetrics securityMetrics;
     /**
      * Токен хранится в заголовке в запросе "Bearer token"
      */
@@ -34,19 +53,96 @@ public class BearerTokenServerAuthenticationConverter implements ServerAuthentic
      * На вход приходит стока и на выход отдает Mono<String>.
      * Вытаскиваем substring (токен) после префикса Bearer.
      * Т.е. убираем префикс и остается только токен.
+     * Если схема не Bearer (например, Basic) - токена нет, отдаем пустой Mono.
      */
     private static final Function<String, Mono<String>> getBearerValue =
-            authValue -> Mono.justOrEmpty(authValue.substring(BEARER_PREFIX.length()));
+            authValue -> authValue.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())
+                    ? Mono.just(authValue.substring(BEARER_PREFIX.length()))
+                    : Mono.empty();
 
     @Override
     public Mono<Authentication> convert(ServerWebExchange exchange) {
-        return extractHeader(exchange)
+        return securityMetrics.timeTokenConversion(extractHeader(exchange)
                 //достаем токен из хедера
                 .flatMap(getBearerValue)
-                //проверяем токен на валидность
-                .flatMap(jwtHandler::check)
-                //трансформируем верификацию VerificationResult в аутентификацию
-                .flatMap(UserAuthenticationBearer::create);
+                //проверяем токен и строим аутентификацию (или берем готовую из кэша)
+                .flatMap(this::authenticate));
+    }
+
+    /**
+     * Если токен уже проверялся - отдаем аутентификацию из кэша,
+     * иначе проверяем его и кладем результат в кэш.
+     * В обоих случаях проверяем, что токен не отозван.
+     *
+     * @param token токен
+     * @return аутентификация завернутая в Mono
+     */
+    private Mono<Authentication> authenticate(String token) {
+        //битый по форме токен отбрасываем до хэширования и декодирования
+        if (!HmacTokenCodec.isWellFormed(token)) {
+            return Mono.error(UnauthorizedException.MALFORMED_TOKEN);
+        }
+        Authentication cached = tokenCache.get(token);
+        if (cached != null) {
+            return notRevoked(cached);
+        }
+        //с Server-Timing проверка подписи - отдельная стадия jwt (без него - без лишней обертки)
+        if (securityMetrics.isServerTimingEnabled()) {
+            return securityMetrics.timeStage(ServerTiming.Stage.JWT, Mono.defer(() -> verify(token)));
+        }
+        return verify(token);
+    }
+
+    /**
+     * Проверка подписи и разбор токена, которого нет в кэше.
+     *
+     * @param token токен
+     * @return аутентификация завернутая в Mono
+     */
+    private Mono<Authentication> verify(String token) {
+        //наш HS256 токен проверяем сами, без jjwt
+        HmacTokenCodec.DecodedToken decoded;
+        try {
+            decoded = tokenCodec.decode(token);
+        } catch (UnauthorizedException e) {
+            return Mono.error(e);
+        }
+        if (decoded != null) {
+            return accept(token, decoded.type(), decoded.authentication(), decoded.expiresAt());
+        }
+        //проверяем токен на валидность
+        return jwtHandler.check(token)
+                .flatMap(result -> {
+                    //refresh-токен (в нем нет роли) отбрасываем до сборки аутентификации
+                    if (TokenType.of(result.claims) == TokenType.REFRESH) {
+                        return Mono.error(UnauthorizedException.REFRESH_TOKEN_AS_ACCESS);
+                    }
+                    //трансформируем верификацию VerificationResult в аутентификацию
+                    return Mono.defer(() -> UserAuthenticationBearer.create(result))
+                            .flatMap(authentication -> accept(token, TokenType.ACCESS, authentication,
+                                    result.claims.getExpiration().getTime()));
+                });
+    }
+
+    /**
+     * Проверенный токен: refresh-токены не пускаем, остальное запоминаем
+     * до exp токена (сюда доходят только валидные токены) и проверяем отзыв.
+     */
+    private Mono<Authentication> accept(String token, TokenType type, Authentication authentication, long expiresAt) {
+        //refresh-токен годится только для /api/v1/auth/refresh
+        if (type == TokenType.REFRESH) {
+            return Mono.error(UnauthorizedException.REFRESH_TOKEN_AS_ACCESS);
+        }
+        tokenCache.put(token, authentication, expiresAt);
+        return notRevoked(authentication);
+    }
+
+    private Mono<Authentication> notRevoked(Authentication authentication) {
+        if (authentication.getDetails() instanceof TokenId tokenId
+                && revocationIndex.isRevoked(tokenId.jti(), tokenId.expiresAt())) {
+            return Mono.error(UnauthorizedException.TOKEN_REVOKED);
+        }
+        return Mono.just(authentication);
     }
 
     /**
@@ -0,0 +1,17 @@
+package net.proselyte.webfluxsecurity.security;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Параметр контроллера типа UserEntity - пользователь текущего запроса.
+ * Загружается из БД не больше одного раза за запрос (см. CurrentUserArgumentResolver).
+ */
+@Target(ElementType.PARAMETER)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface CurrentUser {
+}
@@ -0,0 +1,47 @@
+package net.proselyte.webfluxsecurity.security;
+
+import lombok.RequiredArgsConstructor;
+import net.proselyte.webfluxsecurity.entity.UserEntity;
+import net.proselyte.webfluxsecurity.exception.UnauthorizedException;
+import net.proselyte.webfluxsecurity.service.UserService;
+import org.springframework.core.MethodParameter;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.BindingContext;
+import org.springframework.web.reactive.result.method.HandlerMethodArgumentResolver;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+/**
+ * Резолвер параметров контроллера {@code @CurrentUser UserEntity} - пользователь текущего запроса.
+ * Строка пользователя грузится не больше одного раза за запрос (UserService.getRequestUser);
+ * AuthenticationManager ее не грузит - ему хватает состояния (role, enabled) из кэша.
+ * <p>
+ * CustomPrincipal сюда не заводим: параметры-Principal WebFlux разрешает своим
+ * резолвером раньше пользовательских, а id пользователя и так есть в аутентификации.
+ */
+@Component
+@RequiredArgsConstructor
+public class CurrentUserArgumentResolver implements HandlerMethodArgumentResolver {
+
+    private final UserService userService;
+
+    @Override
+    public boolean supportsParameter(MethodParameter parameter) {
+        return parameter.getParameterType() == UserEntity.class
+                && parameter.hasParameterAnnotation(CurrentUser.class);
+    }
+
+    @Override
+    public Mono<Object> resolveArgument(MethodParameter parameter, BindingContext bindingContext,
+                                        ServerWebExchange exchange) {
+        return exchange.getPrincipal()
+                .filter(Authentication.class::isInstance)
+                .map(authentication -> ((Authentication) authentication).getPrincipal())
+                .cast(CustomPrincipal.class)
+                .switchIfEmpty(Mono.error(() -> new UnauthorizedException("Not authenticated")))
+                .flatMap(customPrincipal -> userService.getRequestUser(exchange, customPrincipal.getId()))
+                .switchIfEmpty(Mono.error(() -> new UnauthorizedException("User not found")))
+                .cast(Object.class);
+    }
+}
@@ -0,0 +1,341 @@
+package net.proselyte.webfluxsecurity.security;
+
+import net.proselyte.webfluxsecurity.exception.UnauthorizedException;
+import org.springframework.security.core.Authentication;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Clock;
+import java.util.Base64;
+
+/**
+ * Быстрая проверка наших собственных HS256 токенов без jjwt.
+ * <p>
+ * jjwt разбирает payload через Jackson в общую мапу Claims, а потом мы достаем
+ * из нее поля по строковым ключам. Здесь же:
+ * - подпись HMAC считается прямо по байтам токена и сравнивается с подписью из токена
+ *   в base64url, без декодирования подписи;
+ * - из payload читаются только поля, которые выдаем мы (sub, role, username, exp, jti, typ),
+ *   и сразу собирается Authentication с CustomPrincipal.
+ * <p>
+ * Токен, который не похож на наш (другой заголовок, kid, nbf, вложенные объекты,
+ * экранирование в строках и т.п.), отдается обратно (decode вернет null) -
+ * его проверит общий парсер JwtHandler.
+ * <p>
+ * Mac на поток свой (ThreadLocal), после настройки объект только читается.
+ */
+public class HmacTokenCodec {
+
+    /**
+     * base64url от {"alg":"HS256"} - заголовок, который jjwt пишет в HS256 токен без kid.
+     */
+    private static final String HEADER = "eyJhbGciOiJIUzI1NiJ9.";
+    /**
+     * HMAC-SHA256 - 32 байта, в base64url без паддинга - 43 символа.
+     */
+    private static final int SIGNATURE_LENGTH = 43;
+    /**
+     * Токены длиннее мы не выдаем - дальше не разбираем.
+     */
+    private static final int MAX_TOKEN_LENGTH = 8192;
+
+    private static final Base64.Encoder SIGNATURE_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder PAYLOAD_DECODER = Base64.getUrlDecoder();
+
+    /**
+     * null - HS256 без kid не принимаем, быстрый путь выключен.
+     */
+    private final SecretKey key;
+    private final Clock clock;
+    private final ThreadLocal<Mac> mac;
+    private final ThreadLocal<byte[]> signatureBuffer = ThreadLocal.withInitial(() -> new byte[SIGNATURE_LENGTH]);
+
+    public HmacTokenCodec(SecretKey key, Clock clock) {
+        this.key = key;
+        this.clock = clock;
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac instance = Mac.getInstance("HmacSHA256");
+                instance.init(key);
+                return instance;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Проверка формы токена до любого декодирования: три непустых сегмента (подпись
+     * может быть пустой только у неподписанных токенов, их мы не принимаем),
+     * только символы base64url, разумная длина.
+     *
+     * @param token токен без префикса Bearer
+     * @return true, если токен похож на JWS
+     */
+    public static boolean isWellFormed(String token) {
+        int length = token.length();
+        if (length == 0 || length > MAX_TOKEN_LENGTH) {
+            return false;
+        }
+        int dots = 0;
+        int segmentLength = 0;
+        for (int i = 0; i < length; i++) {
+            char c = token.charAt(i);
+            if (c == '.') {
+                if (segmentLength == 0) {
+                    return false;
+                }
+                dots++;
+                segmentLength = 0;
+            } else if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_') {
+                segmentLength++;
+            } else {
+                return false;
+            }
+        }
+        return dots == 2 && segmentLength > 0;
+    }
+
+    /**
+     * Проверяет и разбирает наш HS256 токен.
+     *
+     * @param token токен без префикса Bearer, прошедший isWellFormed
+     * @return разобранный токен или null, если токен не наш (его проверит JwtHandler)
+     * @throws UnauthorizedException если подпись неверна или токен протух
+     */
+    public DecodedToken decode(String token) {
+        if (key == null || !token.startsWith(HEADER)) {
+            return null;
+        }
+        int signatureStart = token.lastIndexOf('.') + 1;
+        if (token.length() - signatureStart != SIGNATURE_LENGTH) {
+            return null;
+        }
+
+        byte[] bytes = token.getBytes(StandardCharsets.US_ASCII);
+        Mac hmac = mac.get();
+        hmac.update(bytes, 0, signatureStart - 1);
+        byte[] expected = signatureBuffer.get();
+        SIGNATURE_ENCODER.encode(hmac.doFinal(), expected);
+        //сравнение за постоянное время, как MessageDigest.isEqual, но без копии подписи
+        int diff = 0;
+        for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+            diff |= expected[i] ^ bytes[signatureStart + i];
+        }
+        if (diff != 0) {
+            throw UnauthorizedException.INVALID_SIGNATURE;
+        }
+
+        ByteBuffer payload;
+        try {
+            payload = PAYLOAD_DECODER.decode(
+                    ByteBuffer.wrap(bytes, HEADER.length(), signatureStart - 1 - HEADER.length()));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        Payload claims = Payload.parse(payload.array(), payload.arrayOffset() + payload.position(),
+                payload.arrayOffset() + payload.limit());
+        if (claims == null || claims.subject == null || claims.role == null || claims.expiresAt == Long.MIN_VALUE) {
+            return null;
+        }
+        long userId;
+        try {
+            userId = Long.parseLong(claims.subject);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        long expiresAt = claims.expiresAt * 1000L;
+        //та же проверка и та же ошибка, что в JwtHandler.verify
+        if (expiresAt < clock.millis()) {
+            throw UnauthorizedException.TOKEN_EXPIRED;
+        }
+        Authentication authentication = UserAuthenticationBearer.create(userId, claims.username, claims.role,
+                claims.jti, expiresAt);
+        TokenType type = TokenType.REFRESH.value().equals(claims.type) ? TokenType.REFRESH : TokenType.ACCESS;
+        return new DecodedToken(authentication, type, expiresAt);
+    }
+
+    /**
+     * Результат быстрой проверки.
+     *
+     * @param authentication аутентификация, собранная из токена
+     * @param type           тип токена (claim typ)
+     * @param expiresAt      exp токена в миллисекундах
+     */
+    public record DecodedToken(Authentication authentication, TokenType type, long expiresAt) {
+    }
+
+    /**
+     * Поля payload (claims), которые мы выдаем. Разбор - плоский JSON-объект со строками
+     * без экранирования и целыми числами; все остальное - не наш токен (null).
+     */
+    private static final class Payload {
+        private String subject;
+        private String role;
+        private String username;
+        private String jti;
+        private String type;
+        private long expiresAt = Long.MIN_VALUE;
+
+        private final byte[] json;
+        private final int end;
+        private int pos;
+
+        private Payload(byte[] json, int start, int end) {
+            this.json = json;
+            this.pos = start;
+            this.end = end;
+        }
+
+        static Payload parse(byte[] json, int start, int end) {
+            Payload claims = new Payload(json, start, end);
+            return claims.parseObject() ? claims : null;
+        }
+
+        private boolean parseObject() {
+            skipWhitespace();
+            if (!consume('{')) {
+                return false;
+            }
+            skipWhitespace();
+            if (consume('}')) {
+                return trailingWhitespaceOnly();
+            }
+            do {
+                skipWhitespace();
+                int keyStart = pos + 1;
+                int keyEnd = scanString();
+                if (keyEnd < 0) {
+                    return false;
+                }
+                skipWhitespace();
+                if (!consume(':')) {
+                    return false;
+                }
+                skipWhitespace();
+                if (!parseValue(keyStart, keyEnd)) {
+                    return false;
+                }
+                skipWhitespace();
+            } while (consume(','));
+            return consume('}') && trailingWhitespaceOnly();
+        }
+
+        private boolean parseValue(int keyStart, int keyEnd) {
+            if (pos >= end) {
+                return false;
+            }
+            byte b = json[pos];
+            if (b == '"') {
+                int valueStart = pos + 1;
+                int valueEnd = scanString();
+                if (valueEnd < 0) {
+                    return false;
+                }
+                String value = new String(json, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+                if (keyEquals(keyStart, keyEnd, "sub")) {
+                    subject = value;
+                } else if (keyEquals(keyStart, keyEnd, "role")) {
+                    role = value;
+                } else if (keyEquals(keyStart, keyEnd, "username")) {
+                    username = value;
+                } else if (keyEquals(keyStart, keyEnd, "jti")) {
+                    jti = value;
+                } else if (keyEquals(keyStart, keyEnd, "typ")) {
+                    type = value;
+                }
+                return true;
+            }
+            if (b == '-' || (b >= '0' && b <= '9')) {
+                long number = scanLong();
+                if (number == Long.MIN_VALUE) {
+                    return false;
+                }
+                if (keyEquals(keyStart, keyEnd, "exp")) {
+                    expiresAt = number;
+                } else if (keyEquals(keyStart, keyEnd, "nbf")) {
+                    //nbf мы не выдаем, а jjwt его проверяет - пусть проверит он
+                    return false;
+                }
+                return true;
+            }
+            //exp, sub и т.п. другого типа, вложенные объекты, массивы, true/false/null - не наш токен
+            return false;
+        }
+
+        /**
+         * @return позиция закрывающей кавычки или -1 (нет строки или есть экранирование)
+         */
+        private int scanString() {
+            if (!consume('"')) {
+                return -1;
+            }
+            while (pos < end) {
+                byte b = json[pos];
+                if (b == '"') {
+                    return pos++;
+                }
+                if (b == '\\' || (b >= 0 && b < 0x20)) {
+                    return -1;
+                }
+                pos++;
+            }
+            return -1;
+        }
+
+        /**
+         * @return число или Long.MIN_VALUE, если это не целое число (дробь, экспонента, переполнение)
+         */
+        private long scanLong() {
+            boolean negative = consume('-');
+            int digitsStart = pos;
+            long value = 0;
+            while (pos < end && json[pos] >= '0' && json[pos] <= '9') {
+                if (pos - digitsStart >= 18) {
+                    return Long.MIN_VALUE;
+                }
+                value = value * 10 + (json[pos++] - '0');
+            }
+            if (pos == digitsStart || (pos < end && (json[pos] == '.' || json[pos] == 'e' || json[pos] == 'E'))) {
+                return Long.MIN_VALUE;
+            }
+            return negative ? -value : value;
+        }
+
+        private boolean keyEquals(int keyStart, int keyEnd, String name) {
+            if (keyEnd - keyStart != name.length()) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (json[keyStart + i] != name.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean consume(char c) {
+            if (pos < end && json[pos] == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (pos < end && (json[pos] == ' ' || json[pos] == '\t' || json[pos] == '\n' || json[pos] == '\r')) {
+                pos++;
+            }
+        }
+
+        private boolean trailingWhitespaceOnly() {
+            skipWhitespace();
+            return pos == end;
+        }
+    }
+}
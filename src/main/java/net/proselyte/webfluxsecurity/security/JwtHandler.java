@@ -1,12 +1,17 @@
 package net.proselyte.webfluxsecurity.security;
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
-import net.proselyte.webfluxsecurity.exception.AuthException;
+import io.jsonwebtoken.SignatureException;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
 import net.proselyte.webfluxsecurity.exception.UnauthorizedException;
 import reactor.core.publisher.Mono;
 
-import java.util.Base64;
+import java.security.Key;
+import java.time.Clock;
 import java.util.Date;
 
 /**
@@ -21,17 +26,49 @@ import java.util.Date;
  * класс простой (в нем нет сложной логики) и чтоб потом не было циклических
  * зависимостей, не будем делать его Component, а просто будем в него
  * передавать secret снаружи через конструктор.
+ * <p>
+ * Ключи и парсер создаются один раз и дальше только читаются,
+ * поэтому один экземпляр JwtHandler безопасно использовать из всех потоков
+ * (см. бин jwtHandler в WebSecurityConfig).
+ * <p>
+ * Ключ проверки подписи выбирается по kid из заголовка токена (см. JwtKeyRing),
+ * так что во время ротации принимаются токены, подписанные и старым, и новым ключом.
  */
 public class JwtHandler {
 
     /**
-     * Ключ для распарсивания токена.
-     * Секрет, с помощью которого подписывали токен.
+     * Ключи для проверки подписи токена.
      */
-    private final String secret;
+    private final JwtKeyRing keyRing;
+    /**
+     * Часы, по которым проверяем дату экспирации. Внедряются снаружи,
+     * чтобы в тестах и бенчмарках можно было подставить свое время.
+     */
+    private final Clock clock;
+    /**
+     * Переиспользуемый парсер. После настройки не изменяется.
+     */
+    private final JwtParser jwtParser;
 
     public JwtHandler(String secret) {
-        this.secret = secret;
+        this(secret, Clock.systemUTC());
+    }
+
+    public JwtHandler(String secret, Clock clock) {
+        this(JwtKeyRing.hmac(secret), clock);
+    }
+
+    public JwtHandler(JwtKeyRing keyRing, Clock clock) {
+        this.keyRing = keyRing;
+        this.clock = clock;
+        this.jwtParser = Jwts.parser()
+                .setSigningKeyResolver(new SigningKeyResolverAdapter() {
+                    @Override
+                    public Key resolveSigningKey(JwsHeader header, Claims claims) {
+                        return keyRing.verificationKey(header);
+                    }
+                })
+                .setClock(() -> new Date(clock.millis()));
     }
 
     /**
@@ -43,9 +80,11 @@ public class JwtHandler {
      */
     public Mono<VerificationResult> check(String accessToken) {
         //отдаем объект верификации завернув его в Mono, а если
-        //ошибка то прокидываем exception
-        return Mono.just(verify(accessToken))
-                .onErrorResume(e -> Mono.error(new UnauthorizedException(e.getMessage())));
+        //ошибка то прокидываем exception.
+        //fromCallable, а не just: иначе исключение парсера вылетит еще при сборке
+        //цепочки и не попадет в onErrorResume
+        return Mono.fromCallable(() -> verify(accessToken))
+                .onErrorMap(JwtHandler::toUnauthorized);
     }
 
     /**
@@ -61,20 +100,33 @@ public class JwtHandler {
         final Date expirationDate = claims.getExpiration();
 
         //проверяем дату экспирации токена
-        if (expirationDate.before(new Date())) {
-
-            // не кидаем кастомный exception типа AuthException, т.к. в методе check()
-            // он и так будет перехвачен и завернут в UnauthorizedException, в котором
-            // уже будет код PROSELYTE_TOKEN_EXPIRED, а кидаем обычный
-            // RuntimeException("Token expired").
-            // throw new AuthException("Token expired", "PROSELYTE_TOKEN_EXPIRED");
+        if (expirationDate.getTime() < clock.millis()) {
 
-            throw new RuntimeException("Token expired");
+            // кидаем заранее созданное исключение с кодом PROSELYTE_TOKEN_EXPIRED,
+            // без стектрейса (см. UnauthorizedException)
+            throw UnauthorizedException.TOKEN_EXPIRED;
         }
 
         return new VerificationResult(claims, token);
     }
 
+    /**
+     * Ошибки парсера в UnauthorizedException: частые случаи - в заранее созданные
+     * исключения без стектрейса, остальное - с исходной причиной.
+     */
+    private static Throwable toUnauthorized(Throwable e) {
+        if (e instanceof UnauthorizedException) {
+            return e;
+        }
+        if (e instanceof ExpiredJwtException) {
+            return UnauthorizedException.TOKEN_EXPIRED;
+        }
+        if (e instanceof SignatureException) {
+            return UnauthorizedException.INVALID_SIGNATURE;
+        }
+        return new UnauthorizedException(e.getMessage(), e);
+    }
+
     /**
      * Получает из токена клеймсы.
      *
@@ -82,12 +134,7 @@ public class JwtHandler {
      * @return claims
      */
     private Claims getClaimsFromToken(String token) {
-        return Jwts.parser()
-                .setSigningKey(
-                        //передаем секрет с помощью которого подписывали токен
-                        Base64.getEncoder()
-                                .encodeToString(secret.getBytes())
-                )
+        return jwtParser
                 .parseClaimsJws(token)
                 .getBody();
     }
@@ -0,0 +1,213 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.SignatureException;
+import lombok.extern.slf4j.Slf4j;
+import net.proselyte.webfluxsecurity.config.JwtSigningProperties;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ключи для подписи и проверки токенов.
+ * <p>
+ * Новые токены подписываются одним активным ключом (в заголовке kid),
+ * а проверяются любым из известных ключей - ключ ищем по kid из заголовка.
+ * Токены без kid - это HS256 на общем секрете jwt.secret (если такие еще принимаем).
+ * <p>
+ * Все ключи разбираются один раз при создании и дальше только читаются.
+ */
+@Slf4j
+public class JwtKeyRing {
+
+    private final SignatureAlgorithm signingAlgorithm;
+    private final String signingKid;
+    private final Key signingKey;
+    private final Map<String, Object> signingHeader;
+    /**
+     * null, если HS256 без kid больше не принимаем.
+     */
+    private final SecretKey hmacKey;
+    private final Map<String, ECPublicKey> verificationKeys;
+
+    private JwtKeyRing(SignatureAlgorithm signingAlgorithm, String signingKid, Key signingKey,
+                       SecretKey hmacKey, Map<String, ECPublicKey> verificationKeys) {
+        this.signingAlgorithm = signingAlgorithm;
+        this.signingKid = signingKid;
+        this.signingKey = signingKey;
+        this.signingHeader = signingKid == null ? Map.of() : Map.of(JwsHeader.KEY_ID, signingKid);
+        this.hmacKey = hmacKey;
+        this.verificationKeys = Collections.unmodifiableMap(verificationKeys);
+    }
+
+    /**
+     * Только общий секрет HS256, как было раньше (бенчмарки, тесты).
+     *
+     * @param secret общий секрет
+     * @return JwtKeyRing
+     */
+    public static JwtKeyRing hmac(String secret) {
+        SecretKey key = hmacKey(secret);
+        return new JwtKeyRing(SignatureAlgorithm.HS256, null, key, key, Map.of());
+    }
+
+    /**
+     * Собирает ключи из настроек jwt.signing.*.
+     * ES256 без ключей - ошибка старта: временный ключ у каждого экземпляра свой,
+     * токены одного узла не проверялись бы на другом и не переживали бы рестарт.
+     *
+     * @param properties настройки подписи
+     * @param secret     общий секрет jwt.secret для HS256
+     * @return JwtKeyRing
+     */
+    public static JwtKeyRing from(JwtSigningProperties properties, String secret) {
+        SecretKey hmacKey = properties.isAcceptHs256() || properties.getAlgorithm() == SignatureAlgorithm.HS256
+                ? hmacKey(secret)
+                : null;
+        if (properties.getAlgorithm() == SignatureAlgorithm.HS256) {
+            return new JwtKeyRing(SignatureAlgorithm.HS256, null, hmacKey, hmacKey, Map.of());
+        }
+        if (properties.getAlgorithm() != SignatureAlgorithm.ES256) {
+            throw new IllegalStateException("Unsupported jwt.signing.algorithm: " + properties.getAlgorithm());
+        }
+
+        if (properties.getKeys().isEmpty()) {
+            throw new IllegalStateException("jwt.signing.algorithm is ES256, but jwt.signing.keys is empty: "
+                    + "configure EC P-256 keys or use HS256");
+        }
+
+        Map<String, ECPublicKey> verificationKeys = new LinkedHashMap<>();
+        Map<String, PrivateKey> privateKeys = new LinkedHashMap<>();
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance("EC");
+            for (JwtSigningProperties.Key key : properties.getKeys()) {
+                verificationKeys.put(key.getKid(), (ECPublicKey) keyFactory.generatePublic(
+                        new X509EncodedKeySpec(decodePem(key.getPublicKey()))));
+                if (key.getPrivateKey() != null) {
+                    privateKeys.put(key.getKid(), keyFactory.generatePrivate(
+                            new PKCS8EncodedKeySpec(decodePem(key.getPrivateKey()))));
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Invalid jwt.signing.keys", e);
+        }
+
+        String activeKid = properties.getActiveKid();
+        PrivateKey signingKey = privateKeys.get(activeKid);
+        if (signingKey == null) {
+            throw new IllegalStateException("No private key for jwt.signing.active-kid: " + activeKid);
+        }
+        log.info("IN JwtKeyRing - signing with ES256 key: {}, verification keys: {}",
+                activeKid, verificationKeys.keySet());
+        return new JwtKeyRing(SignatureAlgorithm.ES256, activeKid, signingKey, hmacKey, verificationKeys);
+    }
+
+    public SignatureAlgorithm getSigningAlgorithm() {
+        return signingAlgorithm;
+    }
+
+    /**
+     * @return kid активного ключа или null для HS256
+     */
+    public String getSigningKid() {
+        return signingKid;
+    }
+
+    public Key getSigningKey() {
+        return signingKey;
+    }
+
+    /**
+     * @return параметры заголовка новых токенов (kid), пустые для HS256
+     */
+    public Map<String, Object> getSigningHeader() {
+        return signingHeader;
+    }
+
+    /**
+     * @return общий ключ HS256 или null, если токены HS256 без kid не принимаем
+     */
+    public SecretKey getHmacKey() {
+        return hmacKey;
+    }
+
+    /**
+     * Ключ для проверки подписи по заголовку токена.
+     * Алгоритм из заголовка со своим типом ключа сверяет сам jjwt,
+     * поэтому HS256-токен с kid или ES256-токен без kid не пройдут.
+     *
+     * @param header заголовок токена
+     * @return ключ проверки
+     */
+    public Key verificationKey(JwsHeader<?> header) {
+        String kid = header.getKeyId();
+        if (kid == null) {
+            if (hmacKey == null) {
+                throw new SignatureException("Tokens without kid are not accepted");
+            }
+            return hmacKey;
+        }
+        ECPublicKey key = verificationKeys.get(kid);
+        if (key == null) {
+            throw new SignatureException("Unknown kid: " + kid);
+        }
+        return key;
+    }
+
+    /**
+     * Публичные ключи в формате JWK (RFC 7517) для /.well-known/jwks.json.
+     *
+     * @return список JWK
+     */
+    public List<Map<String, Object>> toJwks() {
+        List<Map<String, Object>> jwks = new ArrayList<>();
+        verificationKeys.forEach((kid, key) -> {
+            Map<String, Object> jwk = new LinkedHashMap<>();
+            jwk.put("kty", "EC");
+            jwk.put("crv", "P-256");
+            jwk.put("kid", kid);
+            jwk.put("use", "sig");
+            jwk.put("alg", SignatureAlgorithm.ES256.getValue());
+            jwk.put("x", coordinate(key.getW().getAffineX()));
+            jwk.put("y", coordinate(key.getW().getAffineY()));
+            jwks.add(jwk);
+        });
+        return jwks;
+    }
+
+    private static SecretKey hmacKey(String secret) {
+        return new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), SignatureAlgorithm.HS256.getJcaName());
+    }
+
+    private static byte[] decodePem(String value) {
+        String base64 = value.replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", "");
+        return Base64.getDecoder().decode(base64);
+    }
+
+    /**
+     * Координата точки P-256 ровно в 32 байта, Base64url без паддинга.
+     */
+    private static String coordinate(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] fixed = new byte[32];
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, fixed, 32 - length, length);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(fixed);
+    }
+}
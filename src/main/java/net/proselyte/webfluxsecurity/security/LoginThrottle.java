@@ -0,0 +1,180 @@
+package net.proselyte.webfluxsecurity.security;
+
+import net.proselyte.webfluxsecurity.exception.TooManyRequestsException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.security.web.util.matcher.IpAddressMatcher;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ограничение частоты логинов перед SecurityService.authenticate.
+ * <p>
+ * Каждый логин - это полный PBKDF2, поэтому перебор паролей легко
+ * загружает все ядра. Здесь держим три набора token bucket:
+ * - по IP клиента;
+ * - по паре username + IP - перебор паролей одного пользователя с одного адреса;
+ * - по username со всех адресов - заметно свободнее, чтобы перебор с многих
+ *   адресов все же упирался в лимит, а чужие неудачные попытки не блокировали
+ *   логин самого пользователя.
+ * Если попытки кончились, запрос получает 429 с Retry-After еще до хэширования.
+ * <p>
+ * IP клиента - адрес соединения. За балансировщиком это адрес балансировщика,
+ * поэтому можно указать заголовок (client-ip.forwarded-header, например X-Forwarded-For)
+ * и адреса прокси, которым мы верим (client-ip.trusted-proxies). Заголовок читаем,
+ * только если соединение пришло от доверенного прокси: идем по списку справа налево
+ * и берем первый адрес, который не является доверенным прокси.
+ */
+@Component
+public class LoginThrottle {
+
+    private static final String UNKNOWN = "unknown";
+
+    private final boolean enabled;
+    private final StripedTokenBuckets clientIpBuckets;
+    private final StripedTokenBuckets usernameBuckets;
+    private final StripedTokenBuckets usernameAnyIpBuckets;
+    /**
+     * Пустой - заголовок не читаем, IP клиента - адрес соединения.
+     */
+    private final String forwardedHeader;
+    private final List<IpAddressMatcher> trustedProxies;
+
+    public LoginThrottle(@Value("${security.login-throttle.enabled}") boolean enabled,
+                         @Value("${security.login-throttle.username.capacity}") int usernameCapacity,
+                         @Value("${security.login-throttle.username.refill-per-minute}") int usernameRefill,
+                         @Value("${security.login-throttle.username-any-ip.capacity}") int usernameAnyIpCapacity,
+                         @Value("${security.login-throttle.username-any-ip.refill-per-minute}") int usernameAnyIpRefill,
+                         @Value("${security.login-throttle.client-ip.capacity}") int clientIpCapacity,
+                         @Value("${security.login-throttle.client-ip.refill-per-minute}") int clientIpRefill,
+                         @Value("${security.login-throttle.client-ip.forwarded-header}") String forwardedHeader,
+                         @Value("${security.login-throttle.client-ip.trusted-proxies}") String[] trustedProxies,
+                         @Value("${security.login-throttle.max-entries}") int maxEntries,
+                         @Value("${security.login-throttle.stripes}") int stripes) {
+        this.enabled = enabled;
+        this.clientIpBuckets = new StripedTokenBuckets(clientIpCapacity, clientIpRefill, maxEntries, stripes,
+                System::nanoTime);
+        this.usernameBuckets = new StripedTokenBuckets(usernameCapacity, usernameRefill, maxEntries, stripes,
+                System::nanoTime);
+        this.usernameAnyIpBuckets = new StripedTokenBuckets(usernameAnyIpCapacity, usernameAnyIpRefill, maxEntries,
+                stripes, System::nanoTime);
+        this.forwardedHeader = forwardedHeader == null ? "" : forwardedHeader.trim();
+        this.trustedProxies = new ArrayList<>();
+        for (String proxy : trustedProxies) {
+            if (!proxy.isBlank()) {
+                //адрес или подсеть (10.0.0.0/8)
+                this.trustedProxies.add(new IpAddressMatcher(proxy.trim()));
+            }
+        }
+    }
+
+    /**
+     * Забирает попытку логина для IP, для пары username + IP и для username.
+     * Сначала проверяем IP: если он уже исчерпал лимит, то попытки
+     * пользователя не тратим.
+     *
+     * @param username имя пользователя из запроса
+     * @param clientIp IP клиента (см. clientIp)
+     * @return пустой Mono, если логин разрешен, иначе ошибка TooManyRequestsException
+     */
+    public Mono<Void> acquire(String username, String clientIp) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        long waitNanos = clientIpBuckets.tryAcquire(clientIp);
+        if (waitNanos == 0) {
+            String key = username == null ? "" : username.trim().toLowerCase(Locale.ROOT);
+            //в IP нет пробелов, так что ключ пары однозначен
+            waitNanos = usernameBuckets.tryAcquire(clientIp + ' ' + key);
+            if (waitNanos == 0) {
+                waitNanos = usernameAnyIpBuckets.tryAcquire(key);
+            }
+        }
+        if (waitNanos == 0) {
+            return Mono.empty();
+        }
+        long retryAfterSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+        return Mono.error(new TooManyRequestsException("Too many login attempts, try again later",
+                "PROSELYTE_TOO_MANY_LOGIN_ATTEMPTS", retryAfterSeconds));
+    }
+
+    /**
+     * IP клиента для лимитов: адрес соединения или, если соединение от доверенного
+     * прокси, адрес из forwarded-header.
+     *
+     * @param request запрос
+     * @return IP клиента или "unknown"
+     */
+    public String clientIp(ServerHttpRequest request) {
+        String remoteIp = remoteIp(request.getRemoteAddress());
+        if (forwardedHeader.isEmpty() || !isTrustedProxy(remoteIp)) {
+            return remoteIp;
+        }
+        List<String> values = request.getHeaders().get(forwardedHeader);
+        if (values == null || values.isEmpty()) {
+            return remoteIp;
+        }
+        //заголовков может быть несколько - это один список через запятую
+        String[] hops = String.join(",", values).split(",");
+        String client = remoteIp;
+        for (int i = hops.length - 1; i >= 0; i--) {
+            String hop = hops[i].trim();
+            if (!isIpLiteral(hop)) {
+                //мусор или порт/обфусцированный адрес - дальше влево этой цепочке не верим
+                return client;
+            }
+            client = hop;
+            if (!isTrustedProxy(hop)) {
+                return hop;
+            }
+        }
+        return client;
+    }
+
+    private boolean isTrustedProxy(String ip) {
+        if (!isIpLiteral(ip)) {
+            return false;
+        }
+        for (IpAddressMatcher proxy : trustedProxies) {
+            if (proxy.matches(ip)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String remoteIp(InetSocketAddress remoteAddress) {
+        if (remoteAddress == null) {
+            return UNKNOWN;
+        }
+        return remoteAddress.getAddress() != null
+                ? remoteAddress.getAddress().getHostAddress()
+                : remoteAddress.getHostString();
+    }
+
+    /**
+     * IPv4 или IPv6 адрес цифрами: IpAddressMatcher для такой строки не ходит в DNS.
+     */
+    private static boolean isIpLiteral(String value) {
+        if (value.isEmpty() || value.length() > 45) {
+            return false;
+        }
+        boolean colon = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ':') {
+                colon = true;
+            } else if (!(c == '.' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+        //без двоеточия это IPv4 - только цифры и точки
+        return colon || value.chars().allMatch(c -> c == '.' || (c >= '0' && c <= '9'));
+    }
+}
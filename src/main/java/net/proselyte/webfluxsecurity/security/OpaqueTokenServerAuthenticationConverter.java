@@ -0,0 +1,39 @@
+package net.proselyte.webfluxsecurity.security;
+
+import lombok.RequiredArgsConstructor;
+import net.proselyte.webfluxsecurity.metrics.SecurityMetrics;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.web.server.authentication.ServerAuthenticationConverter;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+/**
+ * Класс-конвертер для режима непрозрачных токенов (security.auth-mode: session):
+ * токен из заголовка "Bearer token" ищется в хранилище сессий.
+ * <p>
+ * Как и BearerTokenServerAuthenticationConverter, создается через 'new'
+ * в WebSecurityConfig, поэтому '@Component' над классом не нужен.
+ */
+@RequiredArgsConstructor
+public class OpaqueTokenServerAuthenticationConverter implements ServerAuthenticationConverter {
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private final OpaqueTokenService opaqueTokenService;
+    /**
+     * Метрики: тот же таймер auth.token.convert, что и у JWT.
+     */
+    private final SecurityMetrics securityMetrics;
+
+    @Override
+    public Mono<Authentication> convert(ServerWebExchange exchange) {
+        String authValue = exchange.getRequest().getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+        //нет заголовка или схема не Bearer - токена нет
+        if (authValue == null || !authValue.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+            return securityMetrics.timeTokenConversion(Mono.empty());
+        }
+        return securityMetrics.timeTokenConversion(
+                opaqueTokenService.authenticate(authValue.substring(BEARER_PREFIX.length())));
+    }
+}
@@ -0,0 +1,83 @@
+package net.proselyte.webfluxsecurity.security;
+
+import lombok.RequiredArgsConstructor;
+import net.proselyte.webfluxsecurity.entity.UserRole;
+import net.proselyte.webfluxsecurity.exception.UnauthorizedException;
+import org.springframework.security.core.Authentication;
+import org.springframework.session.MapSession;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+
+/**
+ * Выдача и проверка непрозрачных токенов (security.auth-mode: session).
+ * <p>
+ * Токен - это id сессии в ShardedSessionRepository. Аутентификацию собираем
+ * один раз при логине и кладем в атрибут сессии, поэтому на запросе нет ни
+ * разбора, ни проверки подписи - только поиск по id.
+ * <p>
+ * Бин создается в WebSecurityConfig.
+ */
+@RequiredArgsConstructor
+public class OpaqueTokenService {
+
+    /**
+     * Атрибут сессии с готовой аутентификацией.
+     */
+    static final String AUTHENTICATION_ATTRIBUTE = "authentication";
+
+    private final ShardedSessionRepository sessionRepository;
+
+    /**
+     * Создает сессию пользователя.
+     * Refresh-токена нет: срок жизни сессии продлевается на каждом запросе.
+     *
+     * @param userId   id пользователя
+     * @param username username пользователя
+     * @param role     роль пользователя
+     * @return токен с деталями (expiresAt - если токеном не пользоваться)
+     */
+    public Mono<TokenDetails> issue(Long userId, String username, UserRole role) {
+        return sessionRepository.createSession()
+                .flatMap(session -> {
+                    session.setAttribute(AUTHENTICATION_ATTRIBUTE, UserAuthenticationBearer.create(userId, username,
+                            role.name(), new SessionId(session.getId())));
+                    return sessionRepository.save(session).thenReturn(toDetails(userId, session));
+                });
+    }
+
+    /**
+     * Аутентификация по токену. Каждый успешный поиск продлевает сессию.
+     *
+     * @param token токен без префикса Bearer
+     * @return аутентификация или ошибка UnauthorizedException
+     */
+    public Mono<Authentication> authenticate(String token) {
+        //битый по форме токен в хранилище не ищем
+        if (!ShardedSessionRepository.isWellFormedId(token)) {
+            return Mono.error(UnauthorizedException.MALFORMED_TOKEN);
+        }
+        return sessionRepository.findById(token)
+                .mapNotNull(session -> session.<Authentication>getAttribute(AUTHENTICATION_ATTRIBUTE))
+                .switchIfEmpty(Mono.error(UnauthorizedException.SESSION_NOT_FOUND));
+    }
+
+    /**
+     * Выход: сессия удаляется сразу, токен больше не принимается.
+     *
+     * @param token токен (id сессии)
+     * @return Mono, который завершается после удаления
+     */
+    public Mono<Void> invalidate(String token) {
+        return sessionRepository.deleteById(token);
+    }
+
+    private static TokenDetails toDetails(Long userId, MapSession session) {
+        return TokenDetails.builder()
+                .userId(userId)
+                .token(session.getId())
+                .issuedAt(Date.from(session.getCreationTime()))
+                .expiresAt(Date.from(session.getLastAccessedTime().plus(session.getMaxInactiveInterval())))
+                .build();
+    }
+}
@@ -1,30 +1,51 @@
 package net.proselyte.webfluxsecurity.security;
 
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Component;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Base64;
 
 /**
  * PasswordEncoder - используется для кодирования данных, в нашем примере,
  * для кодирования пароля, что бы он не хранился строкой.
+ * <p>
+ * Формат закодированного пароля описывает сам себя:
+ * <pre>
+ * $pbkdf2-sha512$i=210000,l=256$&lt;соль в Base64&gt;$&lt;хэш в Base64&gt;
+ * </pre>
+ * т.е. в строке лежат алгоритм, число итераций, длина ключа и своя соль
+ * для каждого пользователя. Поэтому стоимость хэширования можно менять,
+ * не ломая уже сохраненные пароли.
+ * <p>
+ * Старые пароли (просто Base64 хэша без префикса) считались с общей солью
+ * jwt.password.encoder.secret и jwt.password.encoder.iteration итераций -
+ * их по-прежнему умеем проверять, а upgradeEncoding говорит, что их пора
+ * перехэшировать (это делает SecurityService при успешном логине).
  */
+@Slf4j
 @Component
 public class PBFDK2Encoder implements PasswordEncoder {
 
     /**
-     * Секрет - на основании его будем кодировать.
+     * Секрет - на основании его кодировались старые пароли (общая соль).
      */
     @Value("${jwt.password.encoder.secret}")
     private String secret;
 
     /**
-     * Количество итераций энкодинга.
+     * Количество итераций энкодинга для старых паролей.
      */
     @Value("${jwt.password.encoder.iteration}")
     private Integer iteration;
@@ -34,12 +55,83 @@ public class PBFDK2Encoder implements PasswordEncoder {
     @Value("${jwt.password.encoder.keylength}")
     private Integer keyLength;
 
+    /**
+     * Сколько времени должен занимать один хэш на текущем железе.
+     * 0 - не калибровать, а брать min-iterations.
+     */
+    @Value("${jwt.password.encoder.calibration.target-latency}")
+    private Duration targetLatency;
+    /**
+     * Нижняя и верхняя границы числа итераций для новых хэшей.
+     */
+    @Value("${jwt.password.encoder.calibration.min-iterations}")
+    private Integer minIterations;
+    @Value("${jwt.password.encoder.calibration.max-iterations}")
+    private Integer maxIterations;
+    /**
+     * Хэш считается устаревшим, если его итераций меньше, чем
+     * upgrade-threshold от текущего значения. Запас нужен, чтобы узлы
+     * с немного разным железом не перехэшировали пароли друг за другом.
+     */
+    @Value("${jwt.password.encoder.calibration.upgrade-threshold}")
+    private Double upgradeThreshold;
+
     /**
      * Это секретный ключ алгоритма с помощью, которого будет генериться
      * закодированный пароль.
      */
     private static final String SECRET_KEY_INSTANCE = "PBKDF2WithHmacSHA512";
 
+    /**
+     * Идентификатор алгоритма в закодированной строке.
+     */
+    private static final String ALGORITHM_ID = "pbkdf2-sha512";
+    private static final String PREFIX = "$" + ALGORITHM_ID + "$";
+    private static final int SALT_LENGTH = 16;
+    /**
+     * Итерации после калибровки округляем, чтобы на одинаковом железе
+     * получалось одно и то же число.
+     */
+    private static final int ITERATIONS_GRANULARITY = 1000;
+
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    /**
+     * SecretKeyFactory не потокобезопасен, а getInstance на каждый хэш
+     * каждый раз ищет провайдера. Поэтому держим по одной фабрике на поток
+     * (хэширование идет на фиксированном крипто-пуле, см. ReactivePasswordEncoder).
+     */
+    private static final ThreadLocal<SecretKeyFactory> SECRET_KEY_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance(SECRET_KEY_INSTANCE);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * Число итераций для новых хэшей (после калибровки).
+     */
+    private volatile int currentIterations;
+
+    /**
+     * Калибровка при старте: подбираем число итераций так, чтобы один хэш
+     * на этом железе занимал примерно target-latency.
+     */
+    @PostConstruct
+    public void calibrate() {
+        if (targetLatency.isZero()) {
+            currentIterations = minIterations;
+        } else {
+            currentIterations = calibrate(targetLatency);
+        }
+        log.info("IN PBFDK2Encoder - {} iterations per hash (target latency: {})", currentIterations, targetLatency);
+    }
+
+    public int getCurrentIterations() {
+        return currentIterations;
+    }
+
     /**
      * Метод кодирует пароль в защищенную запись.
      *
@@ -48,17 +140,15 @@ public class PBFDK2Encoder implements PasswordEncoder {
      */
     @Override
     public String encode(CharSequence rawPassword) {
+        int iterations = currentIterations;
+        byte[] salt = new byte[SALT_LENGTH];
+        SECURE_RANDOM.nextBytes(salt);
+        byte[] hash = hash(rawPassword, salt, iterations, keyLength);
 
-        try {
-            byte[] result = SecretKeyFactory.getInstance(SECRET_KEY_INSTANCE)
-                    .generateSecret(new PBEKeySpec(rawPassword.toString().toCharArray(),
-                            secret.getBytes(), iteration, keyLength))
-                    .getEncoded();
-            return Base64.getEncoder()
-                    .encodeToString(result); //кодируем в строку массив байтов
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-            throw new RuntimeException(e);
-        }
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PREFIX + "i=" + iterations + ",l=" + keyLength
+                + "$" + encoder.encodeToString(salt)
+                + "$" + encoder.encodeToString(hash); //кодируем в строку массив байтов
     }
 
     /**
@@ -70,6 +160,147 @@ public class PBFDK2Encoder implements PasswordEncoder {
      */
     @Override
     public boolean matches(CharSequence rawPassword, String encodedPassword) {
-        return encode(rawPassword).equals(encodedPassword);
+        if (encodedPassword == null || encodedPassword.isEmpty()) {
+            return false;
+        }
+        byte[] expected;
+        byte[] actual;
+        if (isLegacy(encodedPassword)) {
+            try {
+                expected = Base64.getDecoder().decode(encodedPassword);
+            } catch (IllegalArgumentException e) {
+                //битый хэш в БД - пароль просто не совпадает, а не ошибка 500
+                log.warn("IN matches - stored password hash is neither the current format nor Base64");
+                return false;
+            }
+            actual = hash(rawPassword, secret.getBytes(), iteration, keyLength);
+        } else {
+            EncodedPassword parsed = EncodedPassword.parse(encodedPassword);
+            if (parsed == null) {
+                return false;
+            }
+            expected = parsed.hash;
+            actual = hash(rawPassword, parsed.salt, parsed.iterations, parsed.keyLength);
+        }
+        //сравнение за постоянное время
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * Нужно ли перехэшировать пароль: старый формат, другая длина ключа
+     * или заметно меньше итераций, чем сейчас.
+     *
+     * @param encodedPassword закодированный пароль из БД
+     * @return true, если пароль стоит перехэшировать
+     */
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        if (encodedPassword == null || encodedPassword.isEmpty()) {
+            return false;
+        }
+        if (isLegacy(encodedPassword)) {
+            return true;
+        }
+        EncodedPassword parsed = EncodedPassword.parse(encodedPassword);
+        return parsed != null
+                && (parsed.keyLength != keyLength || parsed.iterations < currentIterations * upgradeThreshold);
+    }
+
+    private static boolean isLegacy(String encodedPassword) {
+        return !encodedPassword.startsWith("$");
+    }
+
+    private static byte[] hash(CharSequence rawPassword, byte[] salt, int iterations, int keyLength) {
+        char[] password = rawPassword.toString().toCharArray();
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, keyLength);
+        try {
+            return SECRET_KEY_FACTORY.get()
+                    .generateSecret(spec)
+                    .getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new RuntimeException(e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    /**
+     * Подбор числа итераций: удваиваем итерации, пока замер не станет
+     * достаточно длинным, а потом пересчитываем пропорционально под цель.
+     *
+     * @param target желаемое время одного хэша
+     * @return число итераций
+     */
+    private int calibrate(Duration target) {
+        String probe = "calibration-probe";
+        byte[] salt = new byte[SALT_LENGTH];
+        long targetNanos = target.toNanos();
+
+        //прогрев, чтобы JIT успел скомпилировать PBKDF2
+        int iterations = ITERATIONS_GRANULARITY;
+        for (int i = 0; i < 10; i++) {
+            hash(probe, salt, iterations, keyLength);
+        }
+
+        long elapsed = measure(probe, salt, iterations);
+        while (elapsed < targetNanos / 4 && iterations < maxIterations) {
+            iterations = (int) Math.min((long) iterations * 2, maxIterations);
+            elapsed = measure(probe, salt, iterations);
+        }
+
+        long scaled = Math.max(1, (long) ((double) iterations * targetNanos / Math.max(elapsed, 1)));
+        long rounded = Math.max(ITERATIONS_GRANULARITY, scaled / ITERATIONS_GRANULARITY * ITERATIONS_GRANULARITY);
+        return (int) Math.max(minIterations, Math.min(maxIterations, rounded));
+    }
+
+    /**
+     * Медиана трех замеров одного хэша в наносекундах.
+     */
+    private long measure(String probe, byte[] salt, int iterations) {
+        long[] samples = new long[3];
+        for (int i = 0; i < samples.length; i++) {
+            long start = System.nanoTime();
+            hash(probe, salt, iterations, keyLength);
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return samples[1];
+    }
+
+    /**
+     * Разобранная строка $pbkdf2-sha512$i=...,l=...$соль$хэш.
+     */
+    private record EncodedPassword(int iterations, int keyLength, byte[] salt, byte[] hash) {
+
+        static EncodedPassword parse(String encodedPassword) {
+            if (!encodedPassword.startsWith(PREFIX)) {
+                return null;
+            }
+            String[] parts = encodedPassword.substring(PREFIX.length()).split("\\$");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                int iterations = 0;
+                int keyLength = 0;
+                for (String param : parts[0].split(",")) {
+                    if (param.startsWith("i=")) {
+                        iterations = Integer.parseInt(param.substring(2));
+                    } else if (param.startsWith("l=")) {
+                        keyLength = Integer.parseInt(param.substring(2));
+                    }
+                }
+                if (iterations <= 0 || keyLength <= 0) {
+                    return null;
+                }
+                Base64.Decoder decoder = Base64.getDecoder();
+                return new EncodedPassword(iterations, keyLength,
+                        decoder.decode(parts[1].getBytes(StandardCharsets.US_ASCII)),
+                        decoder.decode(parts[2].getBytes(StandardCharsets.US_ASCII)));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
     }
 }
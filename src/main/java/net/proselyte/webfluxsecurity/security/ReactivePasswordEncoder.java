@@ -0,0 +1,121 @@
+package net.proselyte.webfluxsecurity.security;
+
+import lombok.extern.slf4j.Slf4j;
+import net.proselyte.webfluxsecurity.exception.ServiceUnavailableException;
+import net.proselyte.webfluxsecurity.metrics.SecurityMetrics;
+import net.proselyte.webfluxsecurity.metrics.ServerTiming;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Реактивная обертка над PasswordEncoder.
+ * <p>
+ * PBKDF2 - это сотни миллисекунд CPU, и если считать его прямо в цепочке,
+ * то он выполняется на потоке event loop Netty и останавливает все остальные
+ * запросы на этом потоке. Поэтому хэширование уносим на отдельный пул потоков
+ * (по числу ядер) с ограниченной очередью. Если очередь заполнена, сразу
+ * отвечаем ошибкой 503, а не копим задачи.
+ */
+@Slf4j
+@Component
+public class ReactivePasswordEncoder implements DisposableBean {
+
+    private final PasswordEncoder passwordEncoder;
+    private final SecurityMetrics securityMetrics;
+    private final Scheduler cryptoScheduler;
+    private final int parallelism;
+
+    /**
+     * @param passwordEncoder синхронный энкодер (PBFDK2Encoder)
+     * @param securityMetrics метрики (время самого хэширования)
+     * @param poolSize        число потоков, 0 - по числу ядер
+     * @param queueLimit      сколько задач может ждать в очереди
+     */
+    public ReactivePasswordEncoder(PasswordEncoder passwordEncoder,
+                                   SecurityMetrics securityMetrics,
+                                   @Value("${jwt.password.encoder.pool.size}") int poolSize,
+                                   @Value("${jwt.password.encoder.pool.queue-limit}") int queueLimit) {
+        this.passwordEncoder = passwordEncoder;
+        this.securityMetrics = securityMetrics;
+
+        int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        this.parallelism = threads;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("crypto-");
+        threadFactory.setDaemon(true);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueLimit),
+                threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+        this.cryptoScheduler = Schedulers.fromExecutorService(executor, "crypto");
+
+        log.info("IN ReactivePasswordEncoder - crypto pool: {} threads, queue limit: {}", threads, queueLimit);
+    }
+
+    /**
+     * Кодирует пароль на крипто-пуле.
+     *
+     * @param rawPassword сырой пароль
+     * @return закодированный пароль завернутый в Mono
+     */
+    public Mono<String> encode(CharSequence rawPassword) {
+        return offload(() -> securityMetrics.recordPasswordEncode(() -> passwordEncoder.encode(rawPassword)));
+    }
+
+    /**
+     * Сравнивает пароль с закодированным на крипто-пуле.
+     *
+     * @param rawPassword     сырой пароль
+     * @param encodedPassword закодированный пароль из БД
+     * @return результат сравнения завернутый в Mono
+     */
+    public Mono<Boolean> matches(CharSequence rawPassword, String encodedPassword) {
+        return offload(() -> securityMetrics.recordPasswordMatches(
+                () -> passwordEncoder.matches(rawPassword, encodedPassword)));
+    }
+
+    /**
+     * @return число потоков крипто-пула
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Нужно ли перехэшировать пароль с текущими параметрами.
+     * Только разбирает строку, поэтому выполняется на месте.
+     *
+     * @param encodedPassword закодированный пароль из БД
+     * @return true, если пароль стоит перехэшировать
+     */
+    public boolean upgradeEncoding(String encodedPassword) {
+        return passwordEncoder.upgradeEncoding(encodedPassword);
+    }
+
+    private <T> Mono<T> offload(Callable<T> task) {
+        //для Server-Timing - вместе с ожиданием в очереди пула
+        return securityMetrics.timeStage(ServerTiming.Stage.PASSWORD, Mono.fromCallable(task)
+                .subscribeOn(cryptoScheduler)
+                //очередь пула заполнена - не ждем, а сразу отдаем 503
+                .onErrorMap(RejectedExecutionException.class,
+                        e -> new ServiceUnavailableException("Password hashing is overloaded, try again later",
+                                "PROSELYTE_CRYPTO_OVERLOADED")));
+    }
+
+    @Override
+    public void destroy() {
+        cryptoScheduler.dispose();
+    }
+}
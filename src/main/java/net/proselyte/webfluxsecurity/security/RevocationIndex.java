@@ -0,0 +1,101 @@
+package net.proselyte.webfluxsecurity.security;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Отозванные токены (по jti) в памяти приложения.
+ * <p>
+ * Отозванный jti достаточно помнить только до exp токена - после этого токен
+ * и так не пройдет проверку. Поэтому jti раскладываются по корзинам по времени
+ * экспирации (ширина корзины - jwt.revocation.bucket), и корзина, все токены
+ * которой уже протухли, удаляется целиком.
+ * <p>
+ * Проверка - это поиск корзины по exp и contains в ней, без похода в БД.
+ * Пока отозванных токенов нет, проверка сводится к isEmpty.
+ * <p>
+ * Индекс живет в памяти одного экземпляра приложения, поэтому в нем только access-токены:
+ * они живут недолго (jwt.expiration). Использованные refresh-токены общие для всех
+ * экземпляров - см. RefreshTokenRepository.
+ */
+@Slf4j
+@Component
+public class RevocationIndex {
+
+    private final ConcurrentSkipListMap<Long, Set<String>> buckets = new ConcurrentSkipListMap<>();
+    private final long bucketMillis;
+    private final Clock clock;
+
+    public RevocationIndex(@Value("${jwt.revocation.bucket}") Duration bucket, Clock clock) {
+        this.bucketMillis = Math.max(1, bucket.toMillis());
+        this.clock = clock;
+    }
+
+    /**
+     * Отзывает токен.
+     *
+     * @param jti       jti токена
+     * @param expiresAt exp токена в миллисекундах
+     * @return true, если токен отозван сейчас, false - если он уже был отозван раньше или уже протух
+     */
+    public boolean revoke(String jti, long expiresAt) {
+        sweep();
+        if (expiresAt <= clock.millis()) {
+            return false;
+        }
+        boolean added = buckets.computeIfAbsent(expiresAt / bucketMillis, b -> ConcurrentHashMap.newKeySet())
+                .add(jti);
+        if (added) {
+            log.info("IN revoke - token with jti: {} revoked", jti);
+        }
+        return added;
+    }
+
+    /**
+     * Проверяет, отозван ли токен.
+     *
+     * @param jti       jti токена
+     * @param expiresAt exp токена в миллисекундах
+     * @return true, если токен отозван
+     */
+    public boolean isRevoked(String jti, long expiresAt) {
+        if (buckets.isEmpty()) {
+            return false;
+        }
+        sweep();
+        Set<String> bucket = buckets.get(expiresAt / bucketMillis);
+        return bucket != null && bucket.contains(jti);
+    }
+
+    /**
+     * Сколько отозванных токенов помним сейчас.
+     */
+    public int size() {
+        int size = 0;
+        for (Set<String> bucket : buckets.values()) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    /**
+     * Удаляет корзины, в которых все токены уже протухли.
+     */
+    private void sweep() {
+        long current = clock.millis() / bucketMillis;
+        Map.Entry<Long, Set<String>> first = buckets.firstEntry();
+        if (first != null && first.getKey() < current) {
+            ConcurrentNavigableMap<Long, Set<String>> expired = buckets.headMap(current);
+            expired.clear();
+        }
+    }
+}
@@ -1,148 +1,223 @@
 package net.proselyte.webfluxsecurity.security;
 
-import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.Claims;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.proselyte.webfluxsecurity.entity.UserCredentials;
 import net.proselyte.webfluxsecurity.entity.UserEntity;
+import net.proselyte.webfluxsecurity.entity.UserRole;
 import net.proselyte.webfluxsecurity.exception.AuthException;
+import net.proselyte.webfluxsecurity.metrics.SecurityMetrics;
+import net.proselyte.webfluxsecurity.repository.RefreshTokenRepository;
 import net.proselyte.webfluxsecurity.service.UserService;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.util.Base64;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.util.List;
 
+@Slf4j
 @Component
 @RequiredArgsConstructor
 public class SecurityService {
 
-    //инжектим два объекта UserService, PasswordEncoder
+    //инжектим два объекта UserService, ReactivePasswordEncoder
     private final UserService userService;
-    private final PasswordEncoder passwordEncoder; //для работы с закодированным паролем
-
-    /**
-     * Секрет с помощью, которого подписывается токен
-     */
-    @Value("${jwt.secret}")
-    private String secret;
-    /**
-     * Время валидности токена в секундах, чтоб было удобнее читать
-     */
-    @Value("${jwt.expiration}")
-    private Integer expirationInSeconds;
-    /**
-     * Кто выдавал токен
-     */
-    @Value("${jwt.issuer}")
-    private String issuer;
+    private final ReactivePasswordEncoder passwordEncoder; //для работы с закодированным паролем (на крипто-пуле)
+    private final SecurityMetrics securityMetrics;
+    private final JwtHandler jwtHandler; //проверка refresh-токена
+    private final RevocationIndex revocationIndex; //отозванные access-токены (в памяти узла)
+    private final RefreshTokenRepository refreshTokenRepository; //использованные refresh-токены (в БД, общие для узлов)
+    private final TokenIssuer tokenIssuer; //выпуск токенов (ключ и заголовок посчитаны заранее)
+    private final AuthMode authMode; //jwt или непрозрачные токены (security.auth-mode)
+    private final OpaqueTokenService opaqueTokenService; //сессии для режима session
 
     /**
      * Метод генерации токена.
      * Токен состоит из трех частей: заголовок, пейлоад, подпись.
      * <p>
-     * С помощью перегрузок метода накинем нужные нам данные в расширенный токен.
-     * <p>
-     * Для создания токена применяется конструктор JwtSecurityToken.
-     * Одним из параметров служит список объектов Claim.
-     * Объекты Claim служат для хранения некоторых данных о пользователе,
-     * описывают пользователя. Затем эти данные можно применять для
-     * аутентификации.
+     * В claims кладем роль, username и тип токена - эти данные потом применяются
+     * для аутентификации. Сам токен собирает TokenIssuer (без jjwt).
+     *
+     * Видимость пакетная - чтобы вызывать из бенчмарков (src/jmh).
      *
      * @param user пользователь из БД
      * @return токен с деталями (расширенный токен)
      */
-    private TokenDetails generateToken(UserEntity user) {
-
-        //создаем claims
-        Map<String, Object> claims = new HashMap<>() {{
-            put("role", user.getRole()); //хотим в claims передать роль
-            put("username", user.getUsername()); //хотим в claims передать username
-        }};
-        return generateToken(claims, user.getId().toString());
+    TokenDetails generateToken(UserEntity user) {
+        return tokenIssuer.issueAccess(user.getId(), user.getUsername(), user.getRole());
     }
 
     /**
-     * Перегруженный метод generateToken.
-     * В нем создаем дату экспирации токена.
+     * Метод генерации refresh-токена. В нем нет роли и username -
+     * при обновлении пары их все равно берем из БД.
      *
-     * @param claims  claims (доп данные пользователя)
-     * @param subject кому предназначен токен (id пользователя из БД)
-     * @return расширенный токен
+     * @param userId id пользователя из БД
+     * @return refresh-токен с деталями
      */
-    private TokenDetails generateToken(Map<String, Object> claims, String subject) {
-        //преобразуем длительность экспирации токена в миллисекунды
-        long expirationTimeInMillis = expirationInSeconds * 1000L;
-        //создаем дату экспирации токена типа Date
-        long createdDate = new Date().getTime();
-        Date expirationDate = new Date(createdDate + expirationTimeInMillis);
+    TokenDetails generateRefreshToken(Long userId) {
+        return tokenIssuer.issueRefresh(userId);
+    }
 
-        return generateToken(expirationDate, claims, subject);
+    /**
+     * Выдает пару access + refresh.
+     *
+     * @param userId   id пользователя из БД
+     * @param username username пользователя
+     * @param role     роль пользователя
+     * @return расширенный access-токен с id пользователя и refresh-токеном
+     */
+    private TokenDetails issueTokens(Long userId, String username, UserRole role) {
+        return tokenIssuer.issuePair(userId, username, role);
     }
 
     /**
-     * Перегрузка метода generateToken
+     * Выдает токены по режиму аутентификации: пару JWT или непрозрачный токен сессии.
      *
-     * @param expirationDate время действия токена в секундах
-     * @param claims         claims (доп данные пользователя)
-     * @param subject        кому предназначен токен (id пользователя из БД)
+     * @param userId   id пользователя из БД
+     * @param username username пользователя
+     * @param role     роль пользователя
      * @return расширенный токен
      */
-    private TokenDetails generateToken(Date expirationDate, Map<String, Object> claims, String subject) {
-        Date createdDate = new Date(); //дата создания токена
-        String token = Jwts.builder()
-                .setClaims(claims)
-                .setIssuer(issuer) //издатель токена
-                .setSubject(subject) //для кого токен - id пользователя
-                .setIssuedAt(createdDate) //дата выдачи/создания токена
-                .setId(UUID.randomUUID().toString())
-                .setExpiration(expirationDate) //дата срока действия токена
-                //тут подписываем токен
-                .signWith(
-                        SignatureAlgorithm.HS256, //алгоритм подписи токена
-                        Base64.getEncoder().encodeToString(secret.getBytes())) //секрет для подписи закодируем
-                .compact();
+    private Mono<TokenDetails> issue(Long userId, String username, UserRole role) {
+        if (authMode == AuthMode.SESSION) {
+            return opaqueTokenService.issue(userId, username, role);
+        }
+        return Mono.fromCallable(() -> issueTokens(userId, username, role));
+    }
 
-        //возвращаем расширенный токен, накинув в него даты выдачи и экспирации
-        return TokenDetails.builder()
-                .token(token)
-                .issuedAt(createdDate)     //дата выдачи/создания токена
-                .expiresAt(expirationDate) //дата срока действия токена
-                .build();
+    /**
+     * Пакетный выпуск access-токенов для межсервисных вызовов от имени пользователей.
+     * Отключенные и несуществующие пользователи пропускаются.
+     *
+     * @param userIds id пользователей
+     * @return токены с id пользователей
+     */
+    public Flux<TokenDetails> issueAccessTokens(List<Long> userIds) {
+        return userService.getUsersByIds(userIds)
+                .filter(UserEntity::isEnabled)
+                .map(user -> new TokenSubject(user.getId(), user.getUsername(), user.getRole()))
+                .collectList()
+                .flatMapIterable(tokenIssuer::issueAccess);
     }
 
     /**
      * Метод отдает - расширенный токен.
      * Находим пользователя в БД, сверяем его пароль с тем, что пришел,
      * то отдаем токен. Т.е. это говорит, что пользователь валидный.
+     * Из БД читаем только id, username, хэш пароля, роль и enabled (UserCredentials).
      *
      * @param username имя пользователя (логин)
      * @param password пароль пользователя
      * @return расширенный токен
      */
     public Mono<TokenDetails> authenticate(String username, String password) {
-        return userService.getUserByUsername(username) //найди пользователя по его username
+        return securityMetrics.timeLogin(userService.getCredentialsByUsername(username) //найди пользователя по его username
                 //если пользователь есть то делай следующее:
                 .flatMap(user -> {
                     //если пользователь не enabled, то кидаем ошибку
                     if (!user.isEnabled()) {
-                        return Mono.error(new AuthException("Account disabled", "PROSELYTE_USER_ACCOUNT_DISABLED"));
+                        return Mono.error(AuthException.ACCOUNT_DISABLED);
                     }
-                    //если пароли не совпадают, то кинь ошибку
-                    if (!passwordEncoder.matches(password, user.getPassword())) {
-                        return Mono.error(new AuthException("Invalid password", "PROSELYTE_INVALID_PASSWORD"));
-                    }
-                    //если все хорошо, то вернем расширенный токен, добавив в него id пользователя,
-                    //т.к. не всегда удобно парсить детали из токена
-                    return Mono.just(generateToken(user).toBuilder()
-                            .userId(user.getId())
-                            .build());
+                    //сверяем пароли на крипто-пуле, а не на event loop
+                    return passwordEncoder.matches(password, user.getPassword())
+                            .flatMap(matches -> {
+                                //если пароли не совпадают, то кинь ошибку
+                                if (!matches) {
+                                    return Mono.error(AuthException.INVALID_PASSWORD);
+                                }
+                                //если хэш пароля устарел - перехэшируем его с текущими параметрами,
+                                //а потом вернем расширенный токен, добавив в него id пользователя
+                                //(т.к. не всегда удобно парсить детали из токена) и refresh-токен
+                                return upgradePasswordIfNeeded(user, password)
+                                        .then(issue(user.getId(), user.getUsername(), user.getRole()));
+                            });
                 })
                 //если нет пользователя, то кинь ошибку
-                .switchIfEmpty(Mono.error(new AuthException("Invalid username", "PROSELYTE_INVALID_USERNAME")));
+                .switchIfEmpty(Mono.error(AuthException.INVALID_USERNAME)));
+    }
+
+    /**
+     * Обновление пары токенов по refresh-токену.
+     * Refresh-токен одноразовый: предъявленный токен сразу помечаем использованным в БД,
+     * повторное его использование (на любом узле) получит ошибку.
+     * Роль и enabled берем из БД, а не из старого токена.
+     *
+     * @param refreshToken refresh-токен
+     * @return новый расширенный токен
+     */
+    public Mono<TokenDetails> refresh(String refreshToken) {
+        return jwtHandler.check(refreshToken)
+                .flatMap(result -> {
+                    Claims claims = result.claims;
+                    if (TokenType.of(claims) != TokenType.REFRESH) {
+                        return Mono.error(AuthException.INVALID_REFRESH_TOKEN);
+                    }
+                    //markUsed вернет false, если токен уже использован или отозван (в т.ч. параллельным refresh)
+                    return refreshTokenRepository.markUsed(claims.getId(), claims.getExpiration().getTime())
+                            .flatMap(marked -> marked
+                                    ? userService.getUserById(Long.parseLong(claims.getSubject()))
+                                    : Mono.error(AuthException.REFRESH_TOKEN_REVOKED));
+                })
+                .flatMap(user -> {
+                    if (!user.isEnabled()) {
+                        return Mono.error(AuthException.ACCOUNT_DISABLED);
+                    }
+                    return issue(user.getId(), user.getUsername(), user.getRole());
+                })
+                .switchIfEmpty(Mono.error(AuthException.INVALID_REFRESH_TOKEN));
+    }
+
+    /**
+     * Выход: отзываем текущий access-токен и, если передан, refresh-токен того же пользователя.
+     * В режиме session просто удаляем сессию.
+     *
+     * @param authentication аутентификация из контекста
+     * @param refreshToken   refresh-токен или null
+     * @return Mono, который завершается после отзыва
+     */
+    public Mono<Void> logout(Authentication authentication, String refreshToken) {
+        if (authentication.getDetails() instanceof SessionId sessionId) {
+            return opaqueTokenService.invalidate(sessionId.id());
+        }
+        if (authentication.getDetails() instanceof TokenId tokenId) {
+            revocationIndex.revoke(tokenId.jti(), tokenId.expiresAt());
+        }
+        if (refreshToken == null) {
+            return Mono.empty();
+        }
+        Long userId = ((CustomPrincipal) authentication.getPrincipal()).getId();
+        return jwtHandler.check(refreshToken)
+                .filter(result -> TokenType.of(result.claims) == TokenType.REFRESH
+                        && userId.toString().equals(result.claims.getSubject()))
+                .flatMap(result -> refreshTokenRepository.markUsed(result.claims.getId(),
+                        result.claims.getExpiration().getTime()))
+                .then();
+    }
+
+    /**
+     * Если пароль пользователя захэширован со старыми параметрами (старый формат,
+     * меньше итераций, чем сейчас), то пересчитываем хэш и сохраняем его в БД.
+     * Ошибка перехэширования не должна ломать логин, поэтому только логируем ее.
+     *
+     * @param user     данные пользователя из БД
+     * @param password пароль, который только что совпал с хэшем
+     * @return Mono, который завершается после обновления
+     */
+    private Mono<Void> upgradePasswordIfNeeded(UserCredentials user, String password) {
+        if (!passwordEncoder.upgradeEncoding(user.getPassword())) {
+            return Mono.empty();
+        }
+        return passwordEncoder.encode(password)
+                .flatMap(newPassword -> userService.updatePassword(user.getId(), user.getPassword(), newPassword))
+                .doOnNext(updated -> log.info("IN upgradePasswordIfNeeded - password of user with id: {} rehashed: {}",
+                        user.getId(), updated))
+                .onErrorResume(e -> {
+                    log.warn("IN upgradePasswordIfNeeded - failed to rehash password of user with id: {}",
+                            user.getId(), e);
+                    return Mono.empty();
+                })
+                .then();
     }
 }
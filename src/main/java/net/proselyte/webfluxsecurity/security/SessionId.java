@@ -0,0 +1,11 @@
+package net.proselyte.webfluxsecurity.security;
+
+/**
+ * Идентификатор сессии, по которому выход удаляет ее из хранилища.
+ * Лежит в details аутентификации, собранной из непрозрачного токена
+ * (в режиме security.auth-mode: session), вместо TokenId.
+ *
+ * @param id id сессии (он же токен)
+ */
+public record SessionId(String id) {
+}
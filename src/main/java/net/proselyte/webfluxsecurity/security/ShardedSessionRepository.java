@@ -0,0 +1,249 @@
+package net.proselyte.webfluxsecurity.security;
+
+import org.springframework.session.MapSession;
+import org.springframework.session.ReactiveSessionRepository;
+import reactor.core.publisher.Mono;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Хранилище сессий в памяти для режима непрозрачных токенов (security.auth-mode: session).
+ * <p>
+ * Устроено так же, как StripedTokenBuckets: сессии раскладываются по шардам,
+ * у каждого шарда своя блокировка, внутри шарда - LinkedHashMap в порядке доступа:
+ * - срок жизни скользящий (maxInactiveInterval от последнего обращения), поэтому
+ *   в начале шарда всегда самые старые сессии - протухшие удаляем с головы
+ *   и останавливаемся на первой живой;
+ * - если шард переполнен, вытесняется давно не использованная сессия -
+ *   так память ограничена security.session.max-sessions.
+ * <p>
+ * id сессии - 16 случайных байт (128 бит) в base64url, 22 символа. Случайность
+ * берем из своего DRBG на поток, без общей блокировки SecureRandom.
+ * <p>
+ * Как и MapReactiveSessionRepository, наружу отдаем копии сессий: изменения
+ * попадают в хранилище только через save.
+ */
+public class ShardedSessionRepository implements ReactiveSessionRepository<MapSession> {
+
+    /**
+     * 16 байт в base64url без паддинга.
+     */
+    static final int ID_LENGTH = 22;
+    private static final int ID_BYTES = 16;
+    private static final Base64.Encoder ID_ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private final Shard[] shards;
+    private final int mask;
+    private final Duration maxInactiveInterval;
+    private final Clock clock;
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(ShardedSessionRepository::threadRandom);
+
+    /**
+     * @param maxInactiveInterval сколько живет сессия без обращений
+     * @param maxSessions         максимум сессий в памяти
+     * @param shards              число шардов, округляется вверх до степени двойки
+     * @param clock               часы для сроков жизни сессий
+     */
+    public ShardedSessionRepository(Duration maxInactiveInterval, int maxSessions, int shards, Clock clock) {
+        int shardCount = Integer.highestOneBit(Math.max(1, shards - 1)) << 1;
+        this.shards = new Shard[shardCount];
+        int perShard = Math.max(1, maxSessions / shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            this.shards[i] = new Shard(perShard);
+        }
+        this.mask = shardCount - 1;
+        this.maxInactiveInterval = maxInactiveInterval;
+        this.clock = clock;
+    }
+
+    /**
+     * Проверка формы id до обращения к хранилищу: ровно 22 символа base64url.
+     *
+     * @param id id сессии (токен без префикса Bearer)
+     * @return true, если это может быть id нашей сессии
+     */
+    public static boolean isWellFormedId(String id) {
+        if (id.length() != ID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < ID_LENGTH; i++) {
+            char c = id.charAt(i);
+            if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Mono<MapSession> createSession() {
+        return Mono.fromSupplier(() -> {
+            MapSession session = new MapSession(newId());
+            Instant now = clock.instant();
+            session.setCreationTime(now);
+            session.setLastAccessedTime(now);
+            session.setMaxInactiveInterval(maxInactiveInterval);
+            return session;
+        });
+    }
+
+    @Override
+    public Mono<Void> save(MapSession session) {
+        return Mono.fromRunnable(() -> {
+            //id сменили (changeSessionId) - старый id больше не должен находиться
+            String originalId = session.getOriginalId();
+            if (originalId != null && !originalId.equals(session.getId())) {
+                remove(originalId);
+            }
+            MapSession copy = new MapSession(session);
+            Shard shard = shard(copy.getId());
+            Instant now = clock.instant();
+            synchronized (shard) {
+                shard.evictExpired(now);
+                shard.put(copy.getId(), copy);
+            }
+        });
+    }
+
+    @Override
+    public Mono<MapSession> findById(String id) {
+        return Mono.fromSupplier(() -> find(id));
+    }
+
+    @Override
+    public Mono<Void> deleteById(String id) {
+        return Mono.fromRunnable(() -> remove(id));
+    }
+
+    /**
+     * @return сколько сессий сейчас в памяти (в т.ч. протухших, но еще не удаленных)
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return сколько сессий удалено по сроку жизни
+     */
+    public long expiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * @return сколько живых сессий вытеснено из-за лимита памяти
+     */
+    public long evictedCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * Ищет сессию и продлевает ее (обновляет lastAccessedTime).
+     *
+     * @param id id сессии
+     * @return копия сессии или null, если сессии нет или она протухла
+     */
+    private MapSession find(String id) {
+        Shard shard = shard(id);
+        Instant now = clock.instant();
+        synchronized (shard) {
+            //get в LinkedHashMap с порядком доступа переносит сессию в хвост шарда
+            MapSession session = shard.get(id);
+            if (session == null) {
+                return null;
+            }
+            if (isExpired(session, now)) {
+                shard.remove(id);
+                expired.increment();
+                return null;
+            }
+            session.setLastAccessedTime(now);
+            return new MapSession(session);
+        }
+    }
+
+    private void remove(String id) {
+        Shard shard = shard(id);
+        synchronized (shard) {
+            shard.remove(id);
+        }
+    }
+
+    private Shard shard(String id) {
+        int h = id.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    private String newId() {
+        byte[] bytes = new byte[ID_BYTES];
+        random.get().nextBytes(bytes);
+        return ID_ENCODER.encodeToString(bytes);
+    }
+
+    /**
+     * То же правило, что в MapSession.isExpired, но по нашим часам.
+     * Отрицательный maxInactiveInterval - сессия не протухает.
+     */
+    private static boolean isExpired(MapSession session, Instant now) {
+        Duration maxInactive = session.getMaxInactiveInterval();
+        return !maxInactive.isNegative() && now.minus(maxInactive).compareTo(session.getLastAccessedTime()) >= 0;
+    }
+
+    private static SecureRandom threadRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    private class Shard extends LinkedHashMap<String, MapSession> {
+        private final int maxEntries;
+
+        Shard(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MapSession> eldest) {
+            if (size() <= maxEntries) {
+                return false;
+            }
+            evicted.increment();
+            return true;
+        }
+
+        /**
+         * Сессии в порядке доступа, поэтому идем с самой старой
+         * и останавливаемся на первой, которая еще жива.
+         */
+        void evictExpired(Instant now) {
+            Iterator<MapSession> it = values().iterator();
+            while (it.hasNext()) {
+                if (!isExpired(it.next(), now)) {
+                    return;
+                }
+                it.remove();
+                expired.increment();
+            }
+        }
+    }
+}
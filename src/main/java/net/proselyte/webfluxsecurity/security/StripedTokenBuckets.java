@@ -0,0 +1,117 @@
+package net.proselyte.webfluxsecurity.security;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Набор token bucket по ключу (username, IP и т.п.) с ограниченной памятью.
+ * <p>
+ * Ключи раскладываются по полосам (stripes), у каждой полосы своя блокировка,
+ * поэтому параллельные запросы с разными ключами почти не ждут друг друга.
+ * Внутри полосы - LinkedHashMap в порядке доступа:
+ * - если полоса переполнена, вытесняется давно не использованный ключ;
+ * - ведра, которые простояли дольше времени полного пополнения, удаляются -
+ *   они все равно полные и ничего не помнят.
+ */
+class StripedTokenBuckets {
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private final double capacity;
+    private final double tokensPerNano;
+    private final long idleNanos;
+    private final LongSupplier nanoClock;
+
+    /**
+     * @param capacity       размер ведра (сколько попыток можно сделать подряд)
+     * @param refillPerMinute сколько попыток восстанавливается за минуту
+     * @param maxEntries     максимум ключей в памяти
+     * @param stripes        число полос, округляется вверх до степени двойки
+     * @param nanoClock      источник времени в наносекундах
+     */
+    StripedTokenBuckets(int capacity, int refillPerMinute, int maxEntries, int stripes, LongSupplier nanoClock) {
+        int stripeCount = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new Stripe[stripeCount];
+        int perStripe = Math.max(1, maxEntries / stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe(perStripe);
+        }
+        this.mask = stripeCount - 1;
+        this.capacity = capacity;
+        this.tokensPerNano = refillPerMinute / 60_000_000_000d;
+        this.idleNanos = (long) Math.ceil(capacity / tokensPerNano);
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Пытается взять одну попытку из ведра ключа.
+     *
+     * @param key ключ
+     * @return 0, если попытка разрешена, иначе сколько наносекунд ждать до следующей
+     */
+    long tryAcquire(String key) {
+        int h = key.hashCode();
+        Stripe stripe = stripes[(h ^ (h >>> 16)) & mask];
+        long now = nanoClock.getAsLong();
+        synchronized (stripe) {
+            stripe.evictIdle(now);
+            Bucket bucket = stripe.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(capacity, now);
+                stripe.put(key, bucket);
+            } else {
+                bucket.refill(now);
+            }
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - bucket.tokens) / tokensPerNano);
+        }
+    }
+
+    private class Bucket {
+        private double tokens;
+        private long updatedAt;
+
+        Bucket(double tokens, long updatedAt) {
+            this.tokens = tokens;
+            this.updatedAt = updatedAt;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - updatedAt) * tokensPerNano);
+            updatedAt = now;
+        }
+    }
+
+    private class Stripe extends LinkedHashMap<String, Bucket> {
+        private final int maxEntries;
+
+        Stripe(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > maxEntries;
+        }
+
+        /**
+         * Ключи в порядке доступа, поэтому идем с самого старого
+         * и останавливаемся на первом, который еще не простаивает.
+         */
+        void evictIdle(long now) {
+            Iterator<Bucket> it = values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().updatedAt < idleNanos) {
+                    return;
+                }
+                it.remove();
+            }
+        }
+    }
+}
@@ -13,6 +13,8 @@ import java.util.Date;
  * Long userId - id пользователя
  * Date issuedAt - когда выпустили токен
  * Date expiresAt - когда притухнет токен
+ * String refreshToken - refresh-токен для получения новой пары
+ * Date refreshExpiresAt - когда притухнет refresh-токен
  */
 @Data
 @Builder(toBuilder = true)
@@ -23,4 +25,6 @@ public class TokenDetails {
     private String token;
     private Date issuedAt;
     private Date expiresAt;
+    private String refreshToken;
+    private Date refreshExpiresAt;
 }
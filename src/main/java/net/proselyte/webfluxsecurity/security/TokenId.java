@@ -0,0 +1,11 @@
+package net.proselyte.webfluxsecurity.security;
+
+/**
+ * Идентификатор токена, по которому его можно отозвать.
+ * Лежит в details аутентификации, собранной из access-токена.
+ *
+ * @param jti       claim jti
+ * @param expiresAt exp токена в миллисекундах
+ */
+public record TokenId(String jti, long expiresAt) {
+}
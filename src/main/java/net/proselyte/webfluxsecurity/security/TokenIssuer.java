@@ -0,0 +1,422 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.SignatureAlgorithm;
+import net.proselyte.webfluxsecurity.entity.UserRole;
+
+import javax.crypto.Mac;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Выпуск токенов без jjwt.
+ * <p>
+ * Jwts.builder() на каждый токен собирает мапы claims и заголовка, сериализует их
+ * через Jackson, заново готовит ключ и подпись, а для jti мы звали UUID.randomUUID()
+ * (общий SecureRandom на всё приложение). Здесь:
+ * - заголовок (alg, kid) закодирован в base64url один раз при создании;
+ * - payload пишется сразу байтами JSON в буфер потока, без мап и Jackson;
+ * - Mac (HS256) или Signature (ES256) на поток свои и настроены один раз, у ES256 -
+ *   свой DRBG на поток, без общей блокировки SecureRandom;
+ * - jti - случайный префикс экземпляра и счетчик: уникален без обращения к SecureRandom.
+ * <p>
+ * Для HS256 заголовок {"alg":"HS256"} совпадает с тем, что писал jjwt, поэтому
+ * токены по-прежнему проходят быструю проверку HmacTokenCodec.
+ */
+public class TokenIssuer {
+
+    private static final byte[] BASE64URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final SignatureAlgorithm algorithm;
+    private final byte[] headerSegment;
+    private final String issuer;
+    private final long accessLifetimeMillis;
+    private final long refreshLifetimeMillis;
+    private final Clock clock;
+    private final String jtiPrefix;
+    private final AtomicLong jtiCounter = new AtomicLong();
+    private final ThreadLocal<Signer> signer;
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * @param keyRing                ключ подписи и kid
+     * @param clock                  часы для iat и exp
+     * @param issuer                 iss
+     * @param accessLifetimeSeconds  время жизни access-токена
+     * @param refreshLifetimeSeconds время жизни refresh-токена
+     */
+    public TokenIssuer(JwtKeyRing keyRing, Clock clock, String issuer,
+                       long accessLifetimeSeconds, long refreshLifetimeSeconds) {
+        this.algorithm = keyRing.getSigningAlgorithm();
+        if (algorithm != SignatureAlgorithm.HS256 && algorithm != SignatureAlgorithm.ES256) {
+            throw new IllegalArgumentException("Unsupported signing algorithm: " + algorithm);
+        }
+        this.clock = clock;
+        this.issuer = issuer;
+        this.accessLifetimeMillis = accessLifetimeSeconds * 1000L;
+        this.refreshLifetimeMillis = refreshLifetimeSeconds * 1000L;
+
+        JsonWriter header = new JsonWriter();
+        header.beginObject();
+        header.field("alg", algorithm.getValue());
+        if (keyRing.getSigningKid() != null) {
+            header.field(JwsHeader.KEY_ID, keyRing.getSigningKid());
+        }
+        header.endObject();
+        byte[] encoded = new byte[base64Length(header.length) + 1];
+        int length = base64Url(header.bytes, 0, header.length, encoded, 0);
+        encoded[length] = '.';
+        this.headerSegment = encoded;
+
+        //префикс различает экземпляры приложения и рестарты, счетчик - токены внутри экземпляра
+        byte[] prefix = new byte[9];
+        new SecureRandom().nextBytes(prefix);
+        this.jtiPrefix = Base64.getUrlEncoder().withoutPadding().encodeToString(prefix) + '-';
+
+        this.signer = ThreadLocal.withInitial(() -> algorithm == SignatureAlgorithm.HS256
+                ? Signer.hmac(keyRing)
+                : Signer.ecdsa(keyRing));
+    }
+
+    /**
+     * Access-токен.
+     *
+     * @param userId   id пользователя (sub)
+     * @param username username
+     * @param role     роль
+     * @return токен с датами выдачи и экспирации
+     */
+    public TokenDetails issueAccess(Long userId, String username, UserRole role) {
+        return issueAccess(userId, username, role, clock.millis());
+    }
+
+    /**
+     * Refresh-токен: только sub и typ - роль при обновлении берется из БД.
+     *
+     * @param userId id пользователя (sub)
+     * @return токен с датами выдачи и экспирации
+     */
+    public TokenDetails issueRefresh(Long userId) {
+        return issueRefresh(userId, clock.millis());
+    }
+
+    /**
+     * Пара access + refresh с одним временем выдачи.
+     *
+     * @param userId   id пользователя
+     * @param username username
+     * @param role     роль
+     * @return access-токен с userId и refresh-токеном
+     */
+    public TokenDetails issuePair(Long userId, String username, UserRole role) {
+        long now = clock.millis();
+        TokenDetails access = issueAccess(userId, username, role, now);
+        TokenDetails refresh = issueRefresh(userId, now);
+        access.setUserId(userId);
+        access.setRefreshToken(refresh.getToken());
+        access.setRefreshExpiresAt(refresh.getExpiresAt());
+        return access;
+    }
+
+    /**
+     * Пакетный выпуск access-токенов (межсервисные вызовы от имени пользователей):
+     * одно время выдачи, один буфер и одна подпись потока на весь пакет.
+     *
+     * @param subjects пользователи (id, username, role)
+     * @return токены в том же порядке, с userId
+     */
+    public List<TokenDetails> issueAccess(List<TokenSubject> subjects) {
+        long now = clock.millis();
+        List<TokenDetails> tokens = new ArrayList<>(subjects.size());
+        for (TokenSubject subject : subjects) {
+            TokenDetails token = issueAccess(subject.userId(), subject.username(), subject.role(), now);
+            token.setUserId(subject.userId());
+            tokens.add(token);
+        }
+        return tokens;
+    }
+
+    private TokenDetails issueAccess(Long userId, String username, UserRole role, long now) {
+        JsonWriter claims = buffers.get().claims;
+        claims.beginObject();
+        claims.field("role", role.name());
+        claims.field("username", username);
+        claims.field(TokenType.CLAIM, TokenType.ACCESS.value());
+        return sign(claims, userId, now, now + accessLifetimeMillis);
+    }
+
+    private TokenDetails issueRefresh(Long userId, long now) {
+        JsonWriter claims = buffers.get().claims;
+        claims.beginObject();
+        claims.field(TokenType.CLAIM, TokenType.REFRESH.value());
+        return sign(claims, userId, now, now + refreshLifetimeMillis);
+    }
+
+    /**
+     * Дописывает общие claims, собирает header.payload и подписывает.
+     */
+    private TokenDetails sign(JsonWriter claims, Long userId, long issuedAt, long expiresAt) {
+        claims.field("iss", issuer);
+        claims.field("sub", userId.toString());
+        //как у jjwt: iat и exp в секундах
+        claims.field("iat", issuedAt / 1000);
+        claims.jtiField(jtiPrefix, jtiCounter.getAndIncrement());
+        claims.field("exp", expiresAt / 1000);
+        claims.endObject();
+
+        Signer tokenSigner = signer.get();
+        Buffers threadBuffers = buffers.get();
+        int payloadLength = base64Length(claims.length);
+        byte[] token = threadBuffers.token(headerSegment.length + payloadLength + 1 + tokenSigner.encodedLength());
+        System.arraycopy(headerSegment, 0, token, 0, headerSegment.length);
+        int position = base64Url(claims.bytes, 0, claims.length, token, headerSegment.length);
+        byte[] signature = tokenSigner.sign(token, position);
+        token[position++] = '.';
+        position = base64Url(signature, 0, signature.length, token, position);
+
+        return TokenDetails.builder()
+                .token(new String(token, 0, position, StandardCharsets.ISO_8859_1))
+                .issuedAt(new Date(issuedAt))
+                .expiresAt(new Date(expiresAt))
+                .build();
+    }
+
+    private static int base64Length(int length) {
+        return (length / 3) * 4 + (length % 3 == 0 ? 0 : length % 3 + 1);
+    }
+
+    /**
+     * base64url без паддинга из src[offset, offset + length) в dst с позиции position.
+     *
+     * @return позиция в dst после записанного
+     */
+    private static int base64Url(byte[] src, int offset, int length, byte[] dst, int position) {
+        int end = offset + length;
+        int i = offset;
+        while (i + 2 < end) {
+            int bits = (src[i++] & 0xff) << 16 | (src[i++] & 0xff) << 8 | (src[i++] & 0xff);
+            dst[position++] = BASE64URL[bits >>> 18 & 0x3f];
+            dst[position++] = BASE64URL[bits >>> 12 & 0x3f];
+            dst[position++] = BASE64URL[bits >>> 6 & 0x3f];
+            dst[position++] = BASE64URL[bits & 0x3f];
+        }
+        if (i < end) {
+            int bits = (src[i++] & 0xff) << 16;
+            boolean two = i < end;
+            if (two) {
+                bits |= (src[i] & 0xff) << 8;
+            }
+            dst[position++] = BASE64URL[bits >>> 18 & 0x3f];
+            dst[position++] = BASE64URL[bits >>> 12 & 0x3f];
+            if (two) {
+                dst[position++] = BASE64URL[bits >>> 6 & 0x3f];
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Буферы потока: payload и готовый токен. Растут под самый длинный токен и дальше переиспользуются.
+     */
+    private static final class Buffers {
+        private final JsonWriter claims = new JsonWriter();
+        private byte[] token = new byte[512];
+
+        byte[] token(int capacity) {
+            if (token.length < capacity) {
+                token = new byte[Math.max(capacity, token.length * 2)];
+            }
+            return token;
+        }
+    }
+
+    /**
+     * Подпись header.payload ключом потока.
+     */
+    private abstract static class Signer {
+
+        abstract byte[] sign(byte[] input, int length);
+
+        /**
+         * @return длина подписи в base64url
+         */
+        abstract int encodedLength();
+
+        static Signer hmac(JwtKeyRing keyRing) {
+            try {
+                Mac mac = Mac.getInstance(SignatureAlgorithm.HS256.getJcaName());
+                mac.init(keyRing.getSigningKey());
+                return new Signer() {
+                    @Override
+                    byte[] sign(byte[] input, int length) {
+                        mac.update(input, 0, length);
+                        return mac.doFinal();
+                    }
+
+                    @Override
+                    int encodedLength() {
+                        return base64Length(32);
+                    }
+                };
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static Signer ecdsa(JwtKeyRing keyRing) {
+            try {
+                //P1363 - сразу R || S по 32 байта, как требует JWS (без перекодирования из DER)
+                Signature signature = Signature.getInstance("SHA256withECDSAinP1363Format");
+                signature.initSign((PrivateKey) keyRing.getSigningKey(), threadRandom());
+                return new Signer() {
+                    @Override
+                    byte[] sign(byte[] input, int length) {
+                        try {
+                            signature.update(input, 0, length);
+                            return signature.sign();
+                        } catch (GeneralSecurityException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+
+                    @Override
+                    int encodedLength() {
+                        return base64Length(64);
+                    }
+                };
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static SecureRandom threadRandom() {
+            try {
+                return SecureRandom.getInstance("DRBG");
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+    }
+
+    /**
+     * Запись плоского JSON-объекта байтами UTF-8 в переиспользуемый буфер.
+     */
+    private static final class JsonWriter {
+        private byte[] bytes = new byte[256];
+        private int length;
+        private boolean first;
+
+        void beginObject() {
+            length = 0;
+            first = true;
+            write('{');
+        }
+
+        void endObject() {
+            write('}');
+        }
+
+        void field(String name, String value) {
+            name(name);
+            string(value);
+        }
+
+        void field(String name, long value) {
+            name(name);
+            number(value);
+        }
+
+        void jtiField(String prefix, long counter) {
+            name("jti");
+            write('"');
+            for (int i = 0; i < prefix.length(); i++) {
+                write(prefix.charAt(i));
+            }
+            //счетчик в hex без ведущих нулей
+            int shift = Math.max(0, (63 - Long.numberOfLeadingZeros(counter)) & ~3);
+            for (; shift >= 0; shift -= 4) {
+                write(HEX[(int) (counter >>> shift) & 0xf]);
+            }
+            write('"');
+        }
+
+        private void name(String name) {
+            if (!first) {
+                write(',');
+            }
+            first = false;
+            string(name);
+            write(':');
+        }
+
+        private void number(long value) {
+            if (value < 0) {
+                write('-');
+                value = -value;
+            }
+            if (value >= 10) {
+                number(value / 10);
+            }
+            write('0' + (int) (value % 10));
+        }
+
+        private void string(String value) {
+            write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    write('\\');
+                    write(c);
+                } else if (c < 0x20) {
+                    write('\\');
+                    write('u');
+                    write('0');
+                    write('0');
+                    write(HEX[c >> 4]);
+                    write(HEX[c & 0xf]);
+                } else if (c < 0x80) {
+                    write(c);
+                } else if (c < 0x800) {
+                    write(0xc0 | c >> 6);
+                    write(0x80 | c & 0x3f);
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    write(0xf0 | codePoint >> 18);
+                    write(0x80 | codePoint >> 12 & 0x3f);
+                    write(0x80 | codePoint >> 6 & 0x3f);
+                    write(0x80 | codePoint & 0x3f);
+                } else if (Character.isSurrogate(c)) {
+                    //одиночный суррогат - как String.getBytes(UTF_8)
+                    write('?');
+                } else {
+                    write(0xe0 | c >> 12);
+                    write(0x80 | c >> 6 & 0x3f);
+                    write(0x80 | c & 0x3f);
+                }
+            }
+            write('"');
+        }
+
+        private void write(int b) {
+            if (length == bytes.length) {
+                byte[] grown = new byte[bytes.length * 2];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+            bytes[length++] = (byte) b;
+        }
+    }
+}
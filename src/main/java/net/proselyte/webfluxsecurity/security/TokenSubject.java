@@ -0,0 +1,13 @@
+package net.proselyte.webfluxsecurity.security;
+
+import net.proselyte.webfluxsecurity.entity.UserRole;
+
+/**
+ * Для кого выпускается access-токен: ровно те поля, что попадают в claims.
+ *
+ * @param userId   id пользователя (sub)
+ * @param username username
+ * @param role     роль
+ */
+public record TokenSubject(Long userId, String username, UserRole role) {
+}
@@ -0,0 +1,38 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.jsonwebtoken.Claims;
+
+/**
+ * Тип токена, лежит в claim "typ".
+ * ACCESS - для запросов к API (живет jwt.expiration),
+ * REFRESH - только для получения новой пары на /api/v1/auth/refresh (живет jwt.refresh.expiration).
+ */
+public enum TokenType {
+    ACCESS("access"),
+    REFRESH("refresh");
+
+    /**
+     * Имя claim с типом токена.
+     */
+    public static final String CLAIM = "typ";
+
+    private final String value;
+
+    TokenType(String value) {
+        this.value = value;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    /**
+     * Токены, выданные до появления claim "typ", считаем access-токенами.
+     *
+     * @param claims claims проверенного токена
+     * @return тип токена
+     */
+    public static TokenType of(Claims claims) {
+        return REFRESH.value.equals(claims.get(CLAIM, String.class)) ? REFRESH : ACCESS;
+    }
+}
@@ -1,12 +1,16 @@
 package net.proselyte.webfluxsecurity.security;
 
 import io.jsonwebtoken.Claims;
+import net.proselyte.webfluxsecurity.exception.UnauthorizedException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import reactor.core.publisher.Mono;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Класс для трансформации проверки верификации токена VerificationResult
@@ -14,6 +18,8 @@ import java.util.List;
  */
 public class UserAuthenticationBearer {
 
+    private static final Map<String, List<GrantedAuthority>> AUTHORITIES = new ConcurrentHashMap<>();
+
     public static Mono<Authentication> create(JwtHandler.VerificationResult verificationResult) {
         //вытягиваем клеймсы
         Claims claims = verificationResult.claims;
@@ -25,14 +31,75 @@ public class UserAuthenticationBearer {
         //из клеймсов достаем username (мы передавили туда его ранее вкладывая через мапу)
         String username = claims.get("username", String.class);
 
-        //транслируем role в Authority
-        List<SimpleGrantedAuthority> authorities = List.of(new SimpleGrantedAuthority(role));
+        //создаем принципал и возвращаем аутентификацию, завернутую в Mono
+        Long principalId;
+        try {
+            principalId = Long.parseLong(subject);
+        } catch (NumberFormatException e) {
+            return Mono.error(UnauthorizedException.MALFORMED_TOKEN);
+        }
+        return Mono.justOrEmpty(create(principalId, username, role, claims.getId(), claims.getExpiration().getTime()));
+    }
+
+    /**
+     * Аутентификация из уже разобранных полей токена (см. HmacTokenCodec).
+     *
+     * @param userId    id пользователя (sub)
+     * @param username  имя пользователя
+     * @param role      роль
+     * @param jti       jti токена или null
+     * @param expiresAt exp токена в миллисекундах
+     * @return аутентификация
+     */
+    static Authentication create(Long userId, String username, String role, String jti, long expiresAt) {
+        //в details кладем jti и exp - по ним токен можно отозвать
+        return create(userId, username, role, jti != null ? new TokenId(jti, expiresAt) : null);
+    }
 
-        //создаем принципал
-        Long principalId = Long.parseLong(subject);
-        CustomPrincipal principal = new CustomPrincipal(principalId, username);
+    /**
+     * Аутентификация с произвольными details (TokenId, SessionId).
+     *
+     * @param userId   id пользователя
+     * @param username имя пользователя
+     * @param role     роль
+     * @param details  details аутентификации или null
+     * @return аутентификация
+     */
+    static Authentication create(Long userId, String username, String role, Object details) {
+        CustomPrincipal principal = new CustomPrincipal(userId, username);
+        //транслируем role в Authority (ролей немного, список на роль создаем один раз)
+        UsernamePasswordAuthenticationToken authentication =
+                new UsernamePasswordAuthenticationToken(principal, null, authorities(role));
+        if (details != null) {
+            authentication.setDetails(details);
+        }
+        return authentication;
+    }
+
+    /**
+     * Аутентификация с правами текущей роли пользователя (роль из БД могла
+     * поменяться после выдачи токена). Если роль та же - та же аутентификация.
+     *
+     * @param authentication аутентификация из токена
+     * @param role           текущая роль
+     * @return аутентификация с правами роли
+     */
+    static Authentication withRole(Authentication authentication, String role) {
+        List<GrantedAuthority> authorities = authorities(role);
+        if (authentication.getAuthorities().equals(authorities)) {
+            return authentication;
+        }
+        CustomPrincipal principal = (CustomPrincipal) authentication.getPrincipal();
+        return create(principal.getId(), principal.getName(), role, authentication.getDetails());
+    }
 
-        //возвращаем аутентификацию, завернутую в Mono
-        return Mono.justOrEmpty(new UsernamePasswordAuthenticationToken(principal, null, authorities));
+    /**
+     * @throws UnauthorizedException если роли нет (например, refresh-токен) - без роли прав не даем
+     */
+    private static List<GrantedAuthority> authorities(String role) {
+        if (role == null) {
+            throw new UnauthorizedException("Token has no role claim");
+        }
+        return AUTHORITIES.computeIfAbsent(role, r -> List.of(new SimpleGrantedAuthority(r)));
     }
 }
@@ -0,0 +1,134 @@
+package net.proselyte.webfluxsecurity.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.security.core.Authentication;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кэш уже проверенных токенов.
+ * <p>
+ * Клиент присылает один и тот же токен много раз за время его жизни,
+ * поэтому проверенную подпись и собранную Authentication можно запомнить.
+ * Ключ - SHA-256 от токена (сам токен в памяти не храним), запись живет
+ * ровно до exp токена, размер кэша ограничен.
+ * <p>
+ * В кэш кладем только токены, которые прошли проверку в JwtHandler,
+ * невалидный токен сюда попасть не может.
+ */
+public class VerifiedTokenCache {
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * null, если кэш выключен.
+     */
+    private final Cache<ByteBuffer, Entry> cache;
+    private final Clock clock;
+
+    public VerifiedTokenCache(boolean enabled, long maximumSize, Clock clock) {
+        this.clock = clock;
+        this.cache = enabled
+                ? Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new UntilTokenExpiration())
+                .recordStats()
+                .build()
+                : null;
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Достает аутентификацию для токена, если он уже проверялся и еще не протух.
+     *
+     * @param token токен без префикса Bearer
+     * @return аутентификация или null
+     */
+    public Authentication get(String token) {
+        if (cache == null) {
+            return null;
+        }
+        Entry entry = cache.getIfPresent(digest(token));
+        //Caffeine удаляет протухшие записи сам, но на границе exp перепроверяем по нашим часам
+        if (entry == null || entry.expiresAt <= clock.millis()) {
+            return null;
+        }
+        return entry.authentication;
+    }
+
+    /**
+     * Запоминает аутентификацию для проверенного токена.
+     *
+     * @param token          токен без префикса Bearer
+     * @param authentication аутентификация, собранная из токена
+     * @param expiresAt      exp токена
+     */
+    public void put(String token, Authentication authentication, Date expiresAt) {
+        put(token, authentication, expiresAt.getTime());
+    }
+
+    /**
+     * То же, exp в миллисекундах.
+     */
+    public void put(String token, Authentication authentication, long expiresAt) {
+        if (cache == null) {
+            return;
+        }
+        cache.put(digest(token), new Entry(authentication, expiresAt));
+    }
+
+    /**
+     * Счетчики попаданий, промахов и вытеснений.
+     *
+     * @return статистика кэша (пустая, если кэш выключен)
+     */
+    public CacheStats stats() {
+        return cache == null ? CacheStats.empty() : cache.stats();
+    }
+
+    private static ByteBuffer digest(String token) {
+        return ByteBuffer.wrap(SHA_256.get().digest(token.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private record Entry(Authentication authentication, long expiresAt) {
+    }
+
+    /**
+     * Время жизни записи - до exp токена.
+     */
+    private class UntilTokenExpiration implements Expiry<ByteBuffer, Entry> {
+
+        @Override
+        public long expireAfterCreate(ByteBuffer key, Entry value, long currentTime) {
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, value.expiresAt - clock.millis()));
+        }
+
+        @Override
+        public long expireAfterUpdate(ByteBuffer key, Entry value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(ByteBuffer key, Entry value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package net.proselyte.webfluxsecurity.service;
+
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Склейка одновременных загрузок по одному ключу (single-flight).
+ * <p>
+ * Пока загрузка по ключу идет, все остальные вызовы с тем же ключом
+ * подписываются на тот же Mono и получают тот же результат или ту же ошибку,
+ * а в БД уходит один запрос. Как только загрузка завершилась (успешно или
+ * с ошибкой), ключ удаляется - следующий вызов снова идет в БД.
+ * Это не кэш: результат живет ровно столько, сколько идет запрос.
+ *
+ * @param <K> тип ключа
+ * @param <V> тип результата
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, Flight> inFlight = new ConcurrentHashMap<>();
+    private final Runnable onCoalesced;
+
+    /**
+     * @param onCoalesced вызывается, когда вызов присоединился к уже идущей загрузке
+     */
+    public SingleFlight(Runnable onCoalesced) {
+        this.onCoalesced = onCoalesced;
+    }
+
+    /**
+     * Загружает значение по ключу или присоединяется к уже идущей загрузке.
+     *
+     * @param key    ключ
+     * @param loader загрузка, вызывается только если по ключу ничего не загружается
+     * @return результат загрузки завернутый в Mono
+     */
+    public Mono<V> execute(K key, Function<? super K, Mono<V>> loader) {
+        return Mono.defer(() -> {
+            Flight candidate = new Flight(key, loader);
+            Flight flight = inFlight.putIfAbsent(key, candidate);
+            if (flight == null) {
+                return candidate.result;
+            }
+            onCoalesced.run();
+            return flight.result;
+        });
+    }
+
+    /**
+     * Отвязывает идущую загрузку от ключа: те, кто уже ждет, получат ее результат,
+     * а новые вызовы пойдут в БД заново. Нужно после изменения данных, чтобы
+     * новые вызовы не получили значение, прочитанное до изменения.
+     *
+     * @param key ключ
+     */
+    public void forget(K key) {
+        inFlight.remove(key);
+    }
+
+    private final class Flight {
+        private final Mono<V> result;
+
+        Flight(K key, Function<? super K, Mono<V>> loader) {
+            //share(): первый подписчик запускает загрузку, остальные получают тот же сигнал;
+            //отписка одного из ждущих загрузку не отменяет
+            this.result = Mono.defer(() -> loader.apply(key))
+                    .doFinally(signal -> inFlight.remove(key, this))
+                    .share();
+        }
+    }
+}
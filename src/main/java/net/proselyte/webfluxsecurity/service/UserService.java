@@ -1,23 +1,104 @@
 package net.proselyte.webfluxsecurity.service;
 
-import lombok.RequiredArgsConstructor;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
+import net.proselyte.webfluxsecurity.dto.BulkRegistrationResultDto;
+import net.proselyte.webfluxsecurity.dto.BulkUpdateResultDto;
+import net.proselyte.webfluxsecurity.entity.UserCredentials;
 import net.proselyte.webfluxsecurity.entity.UserEntity;
 import net.proselyte.webfluxsecurity.entity.UserRole;
+import net.proselyte.webfluxsecurity.entity.UserStatus;
+import net.proselyte.webfluxsecurity.metrics.SecurityMetrics;
+import net.proselyte.webfluxsecurity.repository.UserChangeEvent;
+import net.proselyte.webfluxsecurity.repository.UserChangeFeed;
 import net.proselyte.webfluxsecurity.repository.UserRepository;
-import org.springframework.security.crypto.password.PasswordEncoder;
+import net.proselyte.webfluxsecurity.security.ReactivePasswordEncoder;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 @Service
-@RequiredArgsConstructor
 public class UserService {
-    //инжектим два объекта UserRepository, PasswordEncoder
+    /**
+     * Атрибут обмена, в котором запоминаем пользователя текущего запроса.
+     */
+    private static final String REQUEST_USER_ATTRIBUTE = UserService.class.getName() + ".REQUEST_USER";
+
+    //инжектим объекты UserRepository, ReactivePasswordEncoder, UserStatusCache, SecurityMetrics
     private final UserRepository userRepository;
-    private final PasswordEncoder passwordEncoder;
+    private final ReactivePasswordEncoder passwordEncoder;
+    private final UserStatusCache userStatusCache;
+    private final SecurityMetrics securityMetrics;
+    private final UserChangeFeed userChangeFeed;
+    //одновременные поиски одного и того же пользователя идут в БД одним запросом
+    private final SingleFlight<Long, UserEntity> userByIdFlights;
+    private final SingleFlight<String, UserCredentials> credentialsFlights;
+    private final SingleFlight<Long, UserStatus> userStatusFlights;
+    //логин без учета регистра username
+    private final boolean caseInsensitiveUsername;
+    //пакетная регистрация: размер INSERT и сколько паролей хэшируем одновременно
+    private final int bulkBatchSize;
+    private final int bulkHashConcurrency;
+    //пакетное изменение пользователей: id в одном UPDATE
+    private final int bulkUpdateChunkSize;
+
+    public UserService(UserRepository userRepository, ReactivePasswordEncoder passwordEncoder,
+                       UserStatusCache userStatusCache, SecurityMetrics securityMetrics,
+                       UserChangeFeed userChangeFeed,
+                       @Value("${users.bulk-registration.batch-size}") int bulkBatchSize,
+                       @Value("${users.bulk-registration.hash-concurrency}") int bulkHashConcurrency,
+                       @Value("${users.bulk-update.chunk-size}") int bulkUpdateChunkSize,
+                       @Value("${security.login.case-insensitive-username}") boolean caseInsensitiveUsername) {
+        this.userRepository = userRepository;
+        this.passwordEncoder = passwordEncoder;
+        this.userStatusCache = userStatusCache;
+        this.securityMetrics = securityMetrics;
+        this.userChangeFeed = userChangeFeed;
+        this.bulkBatchSize = bulkBatchSize;
+        this.bulkUpdateChunkSize = bulkUpdateChunkSize;
+        //по умолчанию - половина крипто-пула, чтобы логины не стояли в очереди за пакетом
+        this.bulkHashConcurrency = bulkHashConcurrency > 0
+                ? bulkHashConcurrency
+                : Math.max(1, passwordEncoder.getParallelism() / 2);
+        this.userByIdFlights = new SingleFlight<>(securityMetrics.coalescedCounter("findById"));
+        this.caseInsensitiveUsername = caseInsensitiveUsername;
+        this.credentialsFlights = new SingleFlight<>(securityMetrics.coalescedCounter(caseInsensitiveUsername
+                ? "findCredentialsByUsernameIgnoreCase"
+                : "findCredentialsByUsername"));
+        this.userStatusFlights = new SingleFlight<>(securityMetrics.coalescedCounter("findStatusById"));
+    }
+
+    /**
+     * Изменения пользователей, сделанные на любом узле (LISTEN/NOTIFY),
+     * сбрасывают кэши этого узла так же, как локальный evictUser.
+     */
+    @PostConstruct
+    public void subscribeToUserChanges() {
+        userChangeFeed.changes().subscribe(this::onUserChange);
+    }
+
+    private void onUserChange(UserChangeEvent event) {
+        if (event.op() == UserChangeEvent.Operation.RESYNC) {
+            //пока не было подписки, изменения могли пройти мимо - сбрасываем всё
+            userStatusCache.invalidateAll();
+            return;
+        }
+        evictUser(event.id());
+        if (event.username() != null) {
+            credentialsFlights.forget(event.username());
+        }
+    }
 
     /**
      * Метод сохранения пользователя в БД.
@@ -26,39 +107,351 @@ public class UserService {
      * @return энтити пользователя
      */
     public Mono<UserEntity> registerUser(UserEntity user) {
-        //сохраняем пользователя в БД с закодированным паролем и ролью USER
-        return userRepository.save(
+        //кодируем пароль на крипто-пуле и сохраняем пользователя в БД
+        //с закодированным паролем и ролью USER
+        return passwordEncoder.encode(user.getPassword())
+                .flatMap(encodedPassword -> securityMetrics.timeRepository("save", userRepository.save(
                         user.toBuilder()
-                                .password(passwordEncoder.encode(user.getPassword()))
+                                .password(encodedPassword)
                                 .role(UserRole.USER)
                                 .enabled(true)
                                 .createdAt(LocalDateTime.now())
                                 .updatedAt(LocalDateTime.now())
                                 .build()
-                )
+                )))
                 //в случае успеха - выводим сообщение в лог
                 .doOnSuccess(u -> {
                     log.info("IN registerUser - user: {} created", u);
                 });
     }
 
+    /**
+     * Пакетная регистрация пользователей.
+     * <p>
+     * Пароли хэшируются параллельно (не больше bulkHashConcurrency задач на крипто-пуле),
+     * готовые записи собираются в пакеты по bulkBatchSize и вставляются одним INSERT.
+     * Результат по каждой записи отдается, как только ее пакет записан. Вход читается
+     * только по мере запроса результатов, поэтому медленный клиент сдерживает и чтение.
+     *
+     * @param users поток пользователей из запроса
+     * @return поток результатов по каждой записи
+     */
+    public Flux<BulkRegistrationResultDto> registerUsers(Flux<UserEntity> users) {
+        return users.index()
+                .flatMap(indexed -> prepareForBulkInsert(indexed.getT1(), indexed.getT2()), bulkHashConcurrency)
+                .buffer(bulkBatchSize)
+                .concatMap(this::insertBatch, 1);
+    }
+
+    /**
+     * Проверяет запись и хэширует пароль. Для невалидной записи
+     * сразу готов результат, и в INSERT она не попадает.
+     */
+    private Mono<PendingUser> prepareForBulkInsert(long index, UserEntity user) {
+        if (!StringUtils.hasText(user.getUsername()) || !StringUtils.hasText(user.getPassword())
+                || user.getFirstName() == null || user.getLastName() == null) {
+            return Mono.just(new PendingUser(index, user, BulkRegistrationResultDto.builder()
+                    .index(index)
+                    .username(user.getUsername())
+                    .status(BulkRegistrationResultDto.Status.INVALID)
+                    .message("username, password, first_name and last_name are required")
+                    .build()));
+        }
+        LocalDateTime now = LocalDateTime.now();
+        return passwordEncoder.encode(user.getPassword())
+                .map(encodedPassword -> new PendingUser(index, user.toBuilder()
+                        .id(null)
+                        .password(encodedPassword)
+                        .role(UserRole.USER)
+                        .enabled(true)
+                        .createdAt(now)
+                        .updatedAt(now)
+                        .build(), null))
+                .onErrorResume(e -> Mono.just(new PendingUser(index, user, BulkRegistrationResultDto.builder()
+                        .index(index)
+                        .username(user.getUsername())
+                        .status(BulkRegistrationResultDto.Status.FAILED)
+                        .message(e.getMessage())
+                        .build())));
+    }
+
+    private Flux<BulkRegistrationResultDto> insertBatch(List<PendingUser> batch) {
+        List<UserEntity> toInsert = new ArrayList<>(batch.size());
+        for (PendingUser pending : batch) {
+            if (pending.result() == null) {
+                toInsert.add(pending.user());
+            }
+        }
+        return securityMetrics.timeRepository("insertBatch",
+                        userRepository.insertIgnoringDuplicates(toInsert).collectList())
+                .flatMapIterable(inserted -> {
+                    Map<String, Long> ids = new HashMap<>();
+                    for (UserEntity user : inserted) {
+                        ids.put(user.getUsername(), user.getId());
+                    }
+                    List<BulkRegistrationResultDto> results = new ArrayList<>(batch.size());
+                    for (PendingUser pending : batch) {
+                        if (pending.result() != null) {
+                            results.add(pending.result());
+                            continue;
+                        }
+                        //remove: второй такой же username в пакете получит DUPLICATE
+                        Long id = ids.remove(pending.user().getUsername());
+                        results.add(BulkRegistrationResultDto.builder()
+                                .index(pending.index())
+                                .username(pending.user().getUsername())
+                                .status(id != null
+                                        ? BulkRegistrationResultDto.Status.CREATED
+                                        : BulkRegistrationResultDto.Status.DUPLICATE)
+                                .id(id)
+                                .build());
+                    }
+                    log.info("IN insertBatch - {} of {} users created", inserted.size(), batch.size());
+                    return results;
+                })
+                .onErrorResume(e -> {
+                    log.error("IN insertBatch - batch of {} users failed", batch.size(), e);
+                    return Flux.fromIterable(batch)
+                            .map(pending -> pending.result() != null
+                                    ? pending.result()
+                                    : BulkRegistrationResultDto.builder()
+                                    .index(pending.index())
+                                    .username(pending.user().getUsername())
+                                    .status(BulkRegistrationResultDto.Status.FAILED)
+                                    .message(e.getMessage())
+                                    .build());
+                });
+    }
+
+    /**
+     * Пакетное изменение пользователей: включение, отключение или смена роли.
+     * <p>
+     * id читаются потоком и собираются в пакеты по bulkUpdateChunkSize, каждый пакет -
+     * один UPDATE ... WHERE id = ANY(:ids). Пакеты выполняются по одному, результат
+     * пакета отдается сразу, поэтому видно, как идет изменение. Ошибка пакета
+     * попадает в его результат (FAILED), следующие пакеты выполняются.
+     * <p>
+     * Новое состояние измененных пользователей сразу кладется в кэш состояния:
+     * AuthenticationManager применяет его к уже выданным токенам на следующем же
+     * запросе, не дожидаясь ttl кэша. Другие узлы узнают об изменении через LISTEN/NOTIFY.
+     *
+     * @param ids     поток id пользователей
+     * @param enabled новое значение enabled или null - не менять
+     * @param role    новая роль или null - не менять
+     * @return поток результатов по пакетам
+     */
+    public Flux<BulkUpdateResultDto> updateUsers(Flux<Long> ids, Boolean enabled, UserRole role) {
+        return Flux.defer(() -> {
+            AtomicLong processed = new AtomicLong();
+            return ids.buffer(bulkUpdateChunkSize)
+                    .index()
+                    .concatMap(chunk -> updateChunk(chunk.getT1(), chunk.getT2(), enabled, role,
+                            processed.addAndGet(chunk.getT2().size())), 1);
+        });
+    }
+
+    private Mono<BulkUpdateResultDto> updateChunk(long chunk, List<Long> ids, Boolean enabled, UserRole role,
+                                                  long processed) {
+        return securityMetrics.timeRepository("updateStatus",
+                        userRepository.updateStatus(ids, enabled, role, LocalDateTime.now())
+                                .doOnNext(this::applyUserStatus)
+                                .count())
+                .map(updated -> {
+                    log.info("IN updateChunk - chunk: {}, {} of {} users updated (enabled: {}, role: {})",
+                            chunk, updated, ids.size(), enabled, role);
+                    return BulkUpdateResultDto.builder()
+                            .chunk(chunk)
+                            .requested(ids.size())
+                            .updated(updated.intValue())
+                            .processed(processed)
+                            .status(BulkUpdateResultDto.Status.OK)
+                            .build();
+                })
+                .onErrorResume(e -> {
+                    log.error("IN updateChunk - chunk: {} of {} users failed", chunk, ids.size(), e);
+                    return Mono.just(BulkUpdateResultDto.builder()
+                            .chunk(chunk)
+                            .requested(ids.size())
+                            .updated(0)
+                            .processed(processed)
+                            .status(BulkUpdateResultDto.Status.FAILED)
+                            .message(e.getMessage())
+                            .build());
+                });
+    }
+
+    /**
+     * Состояние, которое только что записали в БД: идущие поиски отвязываем,
+     * а в кэш кладем новое значение вместо того, чтобы сбросить его.
+     */
+    private void applyUserStatus(UserStatus status) {
+        userByIdFlights.forget(status.getId());
+        userStatusFlights.forget(status.getId());
+        userStatusCache.put(status);
+    }
+
+    /**
+     * Все пользователи по возрастанию id, без хэшей паролей.
+     * <p>
+     * Читаем страницами по pageSize (WHERE id > последний id), следующая страница
+     * запрашивается только когда подписчик разобрал предыдущую, поэтому в памяти
+     * держится не больше одной страницы, а первая запись уходит сразу после первого запроса.
+     *
+     * @param afterId  с какого id начинать (не включительно), 0 - с начала
+     * @param pageSize размер страницы
+     * @return поток пользователей
+     */
+    public Flux<UserEntity> streamUsers(long afterId, int pageSize) {
+        return loadPage(afterId, pageSize)
+                .expand(page -> page.size() < pageSize
+                        ? Mono.empty()
+                        : loadPage(page.get(page.size() - 1).getId(), pageSize))
+                //prefetch 1: иначе flatMapIterable заранее запросит у expand 256 страниц
+                .flatMapIterable(page -> page, 1);
+    }
+
+    private Mono<List<UserEntity>> loadPage(long afterId, int pageSize) {
+        return securityMetrics.timeRepository("findPageAfter",
+                userRepository.findPageAfter(afterId, pageSize).collectList());
+    }
+
     /**
      * Получение данных по пользователю.
+     * Если такой же поиск уже идет, присоединяемся к нему.
      *
      * @param id id пользователя
      * @return энтити пользователя завернутое в Mono
      */
     public Mono<UserEntity> getUserById(Long id) {
-        return userRepository.findById(id);
+        return userByIdFlights.execute(id,
+                key -> securityMetrics.timeRepository("findById", userRepository.findById(key)));
     }
 
     /**
-     * Получение данных по пользователю.
+     * Пользователи по списку id (одним запросом). Несуществующие id пропускаются.
+     *
+     * @param ids id пользователей
+     * @return поток энтити пользователей
+     */
+    public Flux<UserEntity> getUsersByIds(List<Long> ids) {
+        return userRepository.findAllById(ids);
+    }
+
+    /**
+     * Данные для логина (id, username, хэш пароля, роль, enabled) без остальных столбцов.
+     * Если такой же поиск уже идет, присоединяемся к нему.
+     * При security.login.case-insensitive-username регистр username не важен.
+     * Ключ склейки - username ровно как пришел: "Alice" и "alice" могут быть разными
+     * пользователями, и общий результат на двоих проверил бы пароль не того пользователя.
+     *
+     * @param username username
+     * @return данные для логина завернутые в Mono
+     */
+    public Mono<UserCredentials> getCredentialsByUsername(String username) {
+        if (caseInsensitiveUsername) {
+            return credentialsFlights.execute(username,
+                    key -> securityMetrics.timeRepository("findCredentialsByUsernameIgnoreCase",
+                            userRepository.findCredentialsByUsernameIgnoreCase(key)));
+        }
+        return credentialsFlights.execute(username,
+                key -> securityMetrics.timeRepository("findCredentialsByUsername",
+                        userRepository.findCredentialsByUsername(key)));
+    }
+
+    /**
+     * Пользователь текущего запроса: в пределах одного обмена (ServerWebExchange)
+     * строка пользователя загружается из БД не больше одного раза, повторные вызовы
+     * получают тот же результат.
+     * <p>
+     * AuthenticationManager сюда не ходит: ему нужны только role и enabled, и при промахе
+     * кэша состояния он читает их из покрывающего индекса (getUserStatus). Поэтому запрос,
+     * которому нужен весь пользователь (/info), при промахе кэша состояния делает два
+     * коротких запроса по id - это бывает не чаще раза в security.user-status-cache.ttl.
      *
-     * @param username id username
+     * @param exchange текущий обмен
+     * @param id       id пользователя
      * @return энтити пользователя завернутое в Mono
      */
-    public Mono<UserEntity> getUserByUsername(String username) {
-        return userRepository.findByUsername(username);
+    public Mono<UserEntity> getRequestUser(ServerWebExchange exchange, Long id) {
+        RequestUser requestUser = (RequestUser) exchange.getAttributes().compute(REQUEST_USER_ATTRIBUTE,
+                (name, current) -> current instanceof RequestUser memo && memo.id().equals(id)
+                        ? memo
+                        : new RequestUser(id, getUserById(id).cache()));
+        return requestUser.user();
+    }
+
+    /**
+     * Получение состояния пользователя (enabled, role) для проверки запроса.
+     * Может вернуть значение из кэша не старше security.user-status-cache.ttl.
+     *
+     * @param id id пользователя
+     * @return состояние пользователя завернутое в Mono
+     */
+    public Mono<UserStatus> getUserStatus(Long id) {
+        return userStatusCache.get(id, this::loadUserStatus);
+    }
+
+    /**
+     * Замена хэша пароля (перехэширование с новыми параметрами).
+     *
+     * @param id          id пользователя
+     * @param oldPassword хэш, который сейчас лежит в БД
+     * @param newPassword новый хэш
+     * @return true, если пароль обновлен
+     */
+    public Mono<Boolean> updatePassword(Long id, String oldPassword, String newPassword) {
+        return securityMetrics.timeRepository("updatePassword",
+                        userRepository.updatePassword(id, oldPassword, newPassword, LocalDateTime.now()))
+                .map(updated -> updated > 0);
+    }
+
+    /**
+     * Отключение пользователя. Кэш состояния сбрасываем,
+     * чтобы отключение сработало сразу на следующем запросе.
+     *
+     * @param id id пользователя
+     * @return энтити пользователя завернутое в Mono
+     */
+    public Mono<UserEntity> disableUser(Long id) {
+        return getUserById(id)
+                .flatMap(user -> securityMetrics.timeRepository("save", userRepository.save(
+                        user.toBuilder()
+                                .enabled(false)
+                                .updatedAt(LocalDateTime.now())
+                                .build()
+                )))
+                .doOnSuccess(u -> {
+                    evictUser(id);
+                    log.info("IN disableUser - user with id: {} disabled", id);
+                });
+    }
+
+    /**
+     * Хук инвалидации: вызывать после любого изменения пользователя,
+     * которое влияет на проверку запросов (enabled, role).
+     *
+     * @param id id пользователя
+     */
+    public void evictUser(Long id) {
+        //сначала отвязываем идущий поиск, чтобы новые вызовы не получили старые данные
+        userByIdFlights.forget(id);
+        userStatusFlights.forget(id);
+        userStatusCache.invalidate(id);
+    }
+
+    private Mono<UserStatus> loadUserStatus(Long id) {
+        //только id, role, enabled - из покрывающего индекса, без чтения строки целиком;
+        //одновременные промахи кэша по одному id идут в БД одним запросом
+        return userStatusFlights.execute(id,
+                key -> securityMetrics.timeRepository("findStatusById", userRepository.findStatusById(key)));
+    }
+
+    private record RequestUser(Long id, Mono<UserEntity> user) {
+    }
+
+    /**
+     * Запись пакетной регистрации: готова к INSERT (result == null) или уже с результатом.
+     */
+    private record PendingUser(long index, UserEntity user, BulkRegistrationResultDto result) {
     }
 }
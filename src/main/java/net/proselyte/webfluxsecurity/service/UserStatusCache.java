@@ -0,0 +1,112 @@
+package net.proselyte.webfluxsecurity.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import net.proselyte.webfluxsecurity.entity.UserStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Ближний кэш состояния пользователей: id -> (enabled, role).
+ * <p>
+ * AuthenticationManager проверяет, что пользователь активен, на каждом запросе.
+ * Чтобы не ходить за этим в БД каждый раз, держим состояние в памяти не дольше ttl.
+ * ttl = 0 выключает кэш - тогда каждый запрос, как и раньше, читает БД.
+ * <p>
+ * При изменении пользователя (например, его отключили) UserService вызывает
+ * invalidate, чтобы изменение вступило в силу сразу, не дожидаясь ttl.
+ */
+@Slf4j
+@Component
+public class UserStatusCache {
+
+    /**
+     * null, если кэш выключен (ttl = 0).
+     */
+    private final Cache<Long, UserStatus> cache;
+    /**
+     * Счетчик инвалидаций. Загрузка, которая началась до инвалидации,
+     * могла прочитать старое состояние - такой результат в кэш не кладем.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public UserStatusCache(@Value("${security.user-status-cache.ttl}") Duration ttl,
+                           @Value("${security.user-status-cache.max-size}") long maximumSize) {
+        this.cache = ttl.isZero()
+                ? null
+                : Caffeine.newBuilder()
+                .expireAfterWrite(ttl)
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+        log.info("IN UserStatusCache - ttl: {}, max size: {}", ttl, maximumSize);
+    }
+
+    /**
+     * Отдает состояние пользователя из кэша, а если его там нет - загружает.
+     *
+     * @param id     id пользователя
+     * @param loader загрузка состояния из БД
+     * @return состояние пользователя завернутое в Mono
+     */
+    public Mono<UserStatus> get(Long id, Function<Long, Mono<UserStatus>> loader) {
+        if (cache == null) {
+            return loader.apply(id);
+        }
+        UserStatus cached = cache.getIfPresent(id);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        return Mono.defer(() -> {
+            long epoch = invalidations.get();
+            return loader.apply(id)
+                    .doOnNext(status -> {
+                        if (invalidations.get() == epoch) {
+                            cache.put(id, status);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Удаляет состояние пользователя из кэша.
+     *
+     * @param id id пользователя
+     */
+    public void invalidate(Long id) {
+        invalidations.incrementAndGet();
+        if (cache != null) {
+            cache.invalidate(id);
+        }
+    }
+
+    /**
+     * Кладет в кэш состояние, которое только что записали в БД: следующий запрос
+     * пользователя увидит его сразу, без чтения из БД. Загрузки, начатые раньше,
+     * его не перезапишут (как и после invalidate).
+     *
+     * @param status новое состояние пользователя
+     */
+    public void put(UserStatus status) {
+        invalidations.incrementAndGet();
+        if (cache != null) {
+            cache.put(status.getId(), status);
+        }
+    }
+
+    /**
+     * Удаляет из кэша всех пользователей.
+     */
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+}
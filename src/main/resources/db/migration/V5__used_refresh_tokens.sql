@@ -0,0 +1,8 @@
+-- Использованные и отозванные refresh-токены (по jti), общие для всех экземпляров.
+-- Запись нужна только до exp токена (expires_at, мс от эпохи), потом ее удаляем.
+CREATE TABLE used_refresh_tokens (
+    jti        VARCHAR(64) PRIMARY KEY,
+    expires_at BIGINT      NOT NULL
+);
+
+CREATE INDEX used_refresh_tokens_expires_at_idx ON used_refresh_tokens (expires_at);
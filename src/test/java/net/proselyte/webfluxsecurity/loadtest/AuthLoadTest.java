@@ -0,0 +1,206 @@
+package net.proselyte.webfluxsecurity.loadtest;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Нагрузочный тест /register, /login и /info на встроенной БД (профиль loadtest).
+ * <p>
+ * Запросы идут с заданной частотой (открытая модель), смесь операций задается весами.
+ * Задержка считается от момента, когда запрос должен был уйти по расписанию,
+ * поэтому если приложение не успевает, это видно в хвостах, а не прячется.
+ * <p>
+ * В обычный test не входит, запуск:
+ * <pre>
+ * ./gradlew loadTest -Ploadtest.rate=500 -Ploadtest.duration=60 -Ploadtest.mix=register:1,login:2,info:7
+ * </pre>
+ */
+@Tag("loadtest")
+@ActiveProfiles("loadtest")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class AuthLoadTest {
+
+    private static final Logger log = LoggerFactory.getLogger(AuthLoadTest.class);
+    private static final String PASSWORD = "loadtest";
+
+    /**
+     * Запросов в секунду (всех вместе).
+     */
+    private final int rate = Integer.getInteger("loadtest.rate", 200);
+    private final Duration duration = Duration.ofSeconds(Long.getLong("loadtest.duration", 30L));
+    /**
+     * Сколько пользователей заводим заранее для login и info.
+     */
+    private final int users = Integer.getInteger("loadtest.users", 50);
+    /**
+     * Максимум одновременных запросов от драйвера.
+     */
+    private final int concurrency = Integer.getInteger("loadtest.concurrency", 512);
+    private final String mix = System.getProperty("loadtest.mix", "register:1,login:2,info:7");
+
+    @LocalServerPort
+    private int port;
+
+    private final AtomicLong registrations = new AtomicLong();
+
+    enum Endpoint {
+        REGISTER, LOGIN, INFO
+    }
+
+    @Test
+    void run() {
+        WebClient client = WebClient.create("http://localhost:" + port);
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+
+        //заводим пользователей и получаем для них токены
+        List<String> usernames = IntStream.range(0, users)
+                .mapToObj(i -> "seed-" + runId + "-" + i)
+                .toList();
+        List<String> tokens = Flux.fromIterable(usernames)
+                .flatMap(username -> register(client, username).then(login(client, username)), 8)
+                .collectList()
+                .block();
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Map<Endpoint, Timer> timers = new EnumMap<>(Endpoint.class);
+        Map<Endpoint, Counter> errors = new EnumMap<>(Endpoint.class);
+        for (Endpoint endpoint : Endpoint.values()) {
+            timers.put(endpoint, Timer.builder("loadtest." + endpoint.name().toLowerCase())
+                    .publishPercentiles(0.5, 0.99, 0.999)
+                    .percentilePrecision(3)
+                    .distributionStatisticExpiry(duration.multipliedBy(2))
+                    .distributionStatisticBufferLength(1)
+                    .register(registry));
+            errors.put(endpoint, registry.counter("loadtest.errors", "endpoint", endpoint.name()));
+        }
+        Counter dropped = registry.counter("loadtest.dropped");
+
+        List<Endpoint> schedule = parseMix(mix);
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long total = rate * duration.toSeconds();
+        long start = System.nanoTime();
+
+        Flux.interval(Duration.ofNanos(periodNanos))
+                .take(total)
+                .onBackpressureDrop(i -> dropped.increment())
+                .flatMap(i -> {
+                    long intended = start + (i + 1) * periodNanos;
+                    Endpoint endpoint = schedule.get(ThreadLocalRandom.current().nextInt(schedule.size()));
+                    return call(client, endpoint, runId, usernames, tokens)
+                            .then(Mono.fromRunnable(() -> timers.get(endpoint)
+                                    .record(System.nanoTime() - intended, TimeUnit.NANOSECONDS)))
+                            .onErrorResume(e -> {
+                                errors.get(endpoint).increment();
+                                return Mono.empty();
+                            });
+                }, concurrency)
+                .blockLast();
+
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        report(timers, errors, dropped, elapsedSeconds);
+
+        assertThat(timers.values().stream().mapToLong(Timer::count).sum()).isPositive();
+    }
+
+    private Mono<Void> call(WebClient client, Endpoint endpoint, String runId,
+                            List<String> usernames, List<String> tokens) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return switch (endpoint) {
+            case REGISTER -> register(client, "lt-" + runId + "-" + registrations.incrementAndGet());
+            case LOGIN -> login(client, usernames.get(random.nextInt(usernames.size()))).then();
+            case INFO -> client.get()
+                    .uri("/api/v1/auth/info")
+                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + tokens.get(random.nextInt(tokens.size())))
+                    .retrieve()
+                    .toBodilessEntity()
+                    .then();
+        };
+    }
+
+    private Mono<Void> register(WebClient client, String username) {
+        return client.post()
+                .uri("/api/v1/auth/register")
+                .bodyValue(Map.of(
+                        "username", username,
+                        "password", PASSWORD,
+                        "first_name", "Load",
+                        "last_name", "Test"))
+                .retrieve()
+                .toBodilessEntity()
+                .then();
+    }
+
+    private Mono<String> login(WebClient client, String username) {
+        return client.post()
+                .uri("/api/v1/auth/login")
+                .bodyValue(Map.of("username", username, "password", PASSWORD))
+                .retrieve()
+                .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {
+                })
+                .map(body -> (String) body.get("token"));
+    }
+
+    /**
+     * "register:1,login:2,info:7" -> список, в котором каждая операция встречается столько раз, каков ее вес.
+     */
+    private static List<Endpoint> parseMix(String mix) {
+        List<Endpoint> schedule = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split(":");
+            Endpoint endpoint = Endpoint.valueOf(pair[0].trim().toUpperCase());
+            int weight = Integer.parseInt(pair[1].trim());
+            for (int i = 0; i < weight; i++) {
+                schedule.add(endpoint);
+            }
+        }
+        return schedule;
+    }
+
+    private void report(Map<Endpoint, Timer> timers, Map<Endpoint, Counter> errors,
+                        Counter dropped, double elapsedSeconds) {
+        StringBuilder report = new StringBuilder()
+                .append(String.format("%nLoad test: target %d req/s for %ds, mix %s, elapsed %.1fs, dropped %d%n",
+                        rate, duration.toSeconds(), mix, elapsedSeconds, (long) dropped.count()))
+                .append(String.format("%-10s %10s %8s %10s %10s %10s %10s%n",
+                        "endpoint", "ok", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms"));
+        for (Endpoint endpoint : Endpoint.values()) {
+            Timer timer = timers.get(endpoint);
+            ValueAtPercentile[] percentiles = timer.takeSnapshot().percentileValues();
+            report.append(String.format("%-10s %10d %8d %10.1f %10.2f %10.2f %10.2f%n",
+                    endpoint.name().toLowerCase(),
+                    timer.count(),
+                    (long) errors.get(endpoint).count(),
+                    timer.count() / elapsedSeconds,
+                    percentiles[0].value(TimeUnit.MILLISECONDS),
+                    percentiles[1].value(TimeUnit.MILLISECONDS),
+                    percentiles[2].value(TimeUnit.MILLISECONDS)));
+        }
+        log.info("IN report - {}", report);
+    }
+}
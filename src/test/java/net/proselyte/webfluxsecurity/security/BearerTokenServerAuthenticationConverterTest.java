@@ -0,0 +1,91 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.proselyte.webfluxsecurity.entity.UserRole;
+import net.proselyte.webfluxsecurity.exception.UnauthorizedException;
+import net.proselyte.webfluxsecurity.metrics.SecurityMetrics;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import reactor.test.StepVerifier;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Конвертер целиком: быстрый путь, jjwt и отказ в refresh-токенах вместо access.
+ */
+class BearerTokenServerAuthenticationConverterTest {
+
+    private final Clock clock = Clock.systemUTC();
+
+    @Test
+    void accessTokenIsAccepted() {
+        JwtKeyRing keyRing = TestKeys.hs256();
+        String token = issuer(keyRing).issueAccess(42L, "proselyte", UserRole.USER).getToken();
+
+        StepVerifier.create(converter(keyRing).convert(exchange(token)))
+                .assertNext(authentication -> assertThat(((CustomPrincipal) authentication.getPrincipal()).getId())
+                        .isEqualTo(42L))
+                .verifyComplete();
+    }
+
+    @Test
+    void hs256RefreshTokenIsNotAccessToken() {
+        JwtKeyRing keyRing = TestKeys.hs256();
+        String refreshToken = issuer(keyRing).issuePair(42L, "proselyte", UserRole.USER).getRefreshToken();
+
+        StepVerifier.create(converter(keyRing).convert(exchange(refreshToken)))
+                .expectErrorSatisfies(e -> assertThat(e).isSameAs(UnauthorizedException.REFRESH_TOKEN_AS_ACCESS))
+                .verify();
+    }
+
+    @Test
+    void es256RefreshTokenIsNotAccessToken() {
+        JwtKeyRing keyRing = TestKeys.es256();
+        String refreshToken = issuer(keyRing).issuePair(42L, "proselyte", UserRole.USER).getRefreshToken();
+
+        StepVerifier.create(converter(keyRing).convert(exchange(refreshToken)))
+                .expectErrorSatisfies(e -> assertThat(e).isSameAs(UnauthorizedException.REFRESH_TOKEN_AS_ACCESS))
+                .verify();
+    }
+
+    @Test
+    void accessTokenWithoutRoleIsUnauthorized() {
+        JwtKeyRing keyRing = TestKeys.hs256();
+        String token = Jwts.builder()
+                .setSubject("42")
+                .claim("username", "proselyte")
+                .setExpiration(new Date(clock.millis() + 60_000))
+                .signWith(SignatureAlgorithm.HS256, keyRing.getHmacKey())
+                .compact();
+
+        StepVerifier.create(converter(keyRing).convert(exchange(token)))
+                .expectError(UnauthorizedException.class)
+                .verify();
+    }
+
+    private BearerTokenServerAuthenticationConverter converter(JwtKeyRing keyRing) {
+        return new BearerTokenServerAuthenticationConverter(
+                new JwtHandler(keyRing, clock),
+                new HmacTokenCodec(keyRing.getHmacKey(), clock),
+                new VerifiedTokenCache(false, 0, clock),
+                new RevocationIndex(Duration.ofMinutes(1), clock),
+                new SecurityMetrics(new SimpleMeterRegistry()));
+    }
+
+    private TokenIssuer issuer(JwtKeyRing keyRing) {
+        return new TokenIssuer(keyRing, clock, "proselyte", 900, 1209600);
+    }
+
+    private static MockServerWebExchange exchange(String token) {
+        return MockServerWebExchange.from(MockServerHttpRequest.get("/api/v1/auth/info")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token));
+    }
+}
@@ -0,0 +1,217 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.proselyte.webfluxsecurity.exception.UnauthorizedException;
+import net.proselyte.webfluxsecurity.metrics.SecurityMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.security.core.Authentication;
+import reactor.test.StepVerifier;
+
+import javax.crypto.Mac;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Быстрый путь HmacTokenCodec: что он принимает сам, что отклоняет
+ * и что отдает JwtHandler (decode вернул null).
+ */
+class HmacTokenCodecTest {
+
+    private static final String HS256_HEADER = "{\"alg\":\"HS256\"}";
+    private static final long NOW = 1_700_000_000L;
+
+    private final Clock clock = Clock.fixed(Instant.ofEpochSecond(NOW), ZoneOffset.UTC);
+    private final JwtKeyRing keyRing = TestKeys.hs256();
+    private final HmacTokenCodec codec = new HmacTokenCodec(keyRing.getHmacKey(), clock);
+
+    @Test
+    void decodesOwnToken() {
+        String token = sign(HS256_HEADER,
+                "{\"role\":\"ADMIN\",\"username\":\"proselyte\",\"typ\":\"access\",\"iss\":\"proselyte\","
+                        + "\"sub\":\"42\",\"iat\":" + NOW + ",\"jti\":\"abc-1\",\"exp\":" + (NOW + 900) + "}");
+
+        HmacTokenCodec.DecodedToken decoded = codec.decode(token);
+
+        assertThat(decoded).isNotNull();
+        assertThat(decoded.type()).isEqualTo(TokenType.ACCESS);
+        assertThat(decoded.expiresAt()).isEqualTo((NOW + 900) * 1000);
+        CustomPrincipal principal = (CustomPrincipal) decoded.authentication().getPrincipal();
+        assertThat(principal.getId()).isEqualTo(42L);
+        assertThat(principal.getName()).isEqualTo("proselyte");
+        assertThat(decoded.authentication().getDetails()).isEqualTo(new TokenId("abc-1", (NOW + 900) * 1000));
+    }
+
+    @Test
+    void badSignatureIsRejected() {
+        String token = sign(HS256_HEADER, payload("\"proselyte\"", NOW + 900));
+        int signatureStart = token.lastIndexOf('.') + 1;
+        char first = token.charAt(signatureStart);
+        String tampered = token.substring(0, signatureStart) + (first == 'A' ? 'B' : 'A')
+                + token.substring(signatureStart + 1);
+
+        assertThatThrownBy(() -> codec.decode(tampered)).isSameAs(UnauthorizedException.INVALID_SIGNATURE);
+    }
+
+    @Test
+    void tokenSignedWithAnotherSecretIsRejected() {
+        String token = sign(HS256_HEADER, payload("\"proselyte\"", NOW + 900), "another-secret");
+
+        assertThatThrownBy(() -> codec.decode(token)).isSameAs(UnauthorizedException.INVALID_SIGNATURE);
+    }
+
+    @Test
+    void expiredTokenIsRejected() {
+        String token = sign(HS256_HEADER, payload("\"proselyte\"", NOW - 1));
+
+        assertThatThrownBy(() -> codec.decode(token)).isSameAs(UnauthorizedException.TOKEN_EXPIRED);
+    }
+
+    @Test
+    void nbfFallsBackToJwtHandler() {
+        String token = sign(HS256_HEADER, "{\"role\":\"USER\",\"sub\":\"42\",\"nbf\":" + (NOW + 60)
+                + ",\"exp\":" + (NOW + 900) + "}");
+
+        assertThat(codec.decode(token)).isNull();
+        //jjwt nbf проверяет: токен еще не действует
+        StepVerifier.create(converter().convert(exchange(token)))
+                .expectError(UnauthorizedException.class)
+                .verify();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"\"o\\\"brien\"", "\"back\\\\slash\"", "\"\\u0410\\u043b\\u0438\\u0441\\u0430\""})
+    void escapedStringFallsBackToJwtHandler(String username) {
+        String token = sign(HS256_HEADER, payload(username, NOW + 900));
+
+        assertThat(codec.decode(token)).isNull();
+        StepVerifier.create(converter().convert(exchange(token)))
+                .assertNext(authentication -> assertThat(((CustomPrincipal) authentication.getPrincipal()).getId())
+                        .isEqualTo(42L))
+                .verifyComplete();
+    }
+
+    @Test
+    void escapedUsernameIsDecodedByJwtHandler() {
+        String token = sign(HS256_HEADER, payload("\"o\\\"brien\"", NOW + 900));
+
+        Authentication authentication = converter().convert(exchange(token)).block();
+
+        assertThat(((CustomPrincipal) authentication.getPrincipal()).getName()).isEqualTo("o\"brien");
+    }
+
+    /**
+     * При повторах ключа, как и Jackson в jjwt, берем последнее значение:
+     * быстрый путь и JwtHandler видят одного и того же пользователя.
+     */
+    @Test
+    void duplicateKeysResolveLikeJwtHandler() {
+        String token = sign(HS256_HEADER, "{\"role\":\"USER\",\"sub\":\"1\",\"username\":\"first\","
+                + "\"sub\":\"2\",\"username\":\"second\",\"exp\":" + (NOW + 900) + "}");
+
+        CustomPrincipal fast = (CustomPrincipal) codec.decode(token).authentication().getPrincipal();
+        JwtHandler.VerificationResult slow = new JwtHandler(keyRing, clock).check(token).block();
+
+        assertThat(fast.getId()).isEqualTo(Long.parseLong(slow.claims.getSubject())).isEqualTo(2L);
+        assertThat(fast.getName()).isEqualTo(slow.claims.get("username", String.class)).isEqualTo("second");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"{\"alg\":\"HS256\",\"typ\":\"JWT\"}", "{\"typ\":\"JWT\",\"alg\":\"HS256\"}",
+            "{\"alg\":\"HS256\",\"kid\":\"k1\"}", "{\"alg\":\"none\"}", "{\"alg\":\"HS256\"", "not json"})
+    void otherHeaderFallsBackToJwtHandler(String header) {
+        String token = sign(header, payload("\"proselyte\"", NOW + 900));
+
+        assertThat(codec.decode(token)).isNull();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "{\"role\":\"USER\",\"sub\":\"42\",\"exp\":1.7e9}",
+            "{\"role\":\"USER\",\"sub\":\"42\",\"exp\":\"1700000900\"}",
+            "{\"role\":\"USER\",\"sub\":42,\"exp\":1700000900}",
+            "{\"role\":\"USER\",\"sub\":\"42\",\"exp\":1700000900,\"aud\":[\"a\"]}",
+            "{\"role\":\"USER\",\"sub\":\"42\",\"exp\":1700000900,\"ext\":{\"a\":1}}",
+            "{\"role\":\"USER\",\"sub\":\"42\"}",
+            "{\"sub\":\"42\",\"exp\":1700000900}",
+            "{\"role\":\"USER\",\"sub\":\"42\",\"exp\":1700000900",
+            "[]"})
+    void unsupportedPayloadFallsBackToJwtHandler(String payload) {
+        assertThat(codec.decode(sign(HS256_HEADER, payload))).isNull();
+    }
+
+    @Test
+    void wrongSignatureLengthFallsBackToJwtHandler() {
+        String token = sign(HS256_HEADER, payload("\"proselyte\"", NOW + 900));
+
+        assertThat(codec.decode(token + "AA")).isNull();
+    }
+
+    @Test
+    void disabledWithoutKey() {
+        String token = sign(HS256_HEADER, payload("\"proselyte\"", NOW + 900));
+
+        assertThat(new HmacTokenCodec(null, clock).decode(token)).isNull();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "a.b", "a..c", ".b.c", "a.b.", "a.b.c.d", "a.b+.c", "a.b.c=", "a b.c.d"})
+    void malformedTokensAreNotWellFormed(String token) {
+        assertThat(HmacTokenCodec.isWellFormed(token)).isFalse();
+    }
+
+    @Test
+    void tooLongTokenIsNotWellFormed() {
+        assertThat(HmacTokenCodec.isWellFormed("a.b." + "c".repeat(8192))).isFalse();
+        assertThat(HmacTokenCodec.isWellFormed("a.b.c")).isTrue();
+    }
+
+    private BearerTokenServerAuthenticationConverter converter() {
+        return new BearerTokenServerAuthenticationConverter(
+                new JwtHandler(keyRing, clock),
+                codec,
+                new VerifiedTokenCache(false, 0, clock),
+                new RevocationIndex(Duration.ofMinutes(1), clock),
+                new SecurityMetrics(new SimpleMeterRegistry()));
+    }
+
+    private static MockServerWebExchange exchange(String token) {
+        return MockServerWebExchange.from(MockServerHttpRequest.get("/api/v1/auth/info")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token));
+    }
+
+    private static String payload(String usernameJson, long expiresAt) {
+        return "{\"role\":\"USER\",\"username\":" + usernameJson + ",\"sub\":\"42\",\"jti\":\"j1\",\"exp\":"
+                + expiresAt + "}";
+    }
+
+    private static String sign(String header, String payload) {
+        return sign(header, payload, TestKeys.SECRET);
+    }
+
+    private static String sign(String header, String payload, String secret) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String signingInput = encoder.encodeToString(header.getBytes(StandardCharsets.UTF_8)) + '.'
+                + encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(JwtKeyRing.hmac(secret).getHmacKey());
+            return signingInput + '.' + encoder.encodeToString(
+                    mac.doFinal(signingInput.getBytes(StandardCharsets.US_ASCII)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
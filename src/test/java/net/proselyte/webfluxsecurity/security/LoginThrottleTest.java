@@ -0,0 +1,81 @@
+package net.proselyte.webfluxsecurity.security;
+
+import net.proselyte.webfluxsecurity.exception.TooManyRequestsException;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import reactor.test.StepVerifier;
+
+import java.net.InetSocketAddress;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LoginThrottleTest {
+
+    private static final String XFF = "X-Forwarded-For";
+
+    @Test
+    void forwardedHeaderIsIgnoredWithoutTrustedProxy() {
+        LoginThrottle throttle = throttle(XFF, "10.0.0.0/8");
+
+        assertThat(throttle.clientIp(request("203.0.113.7", "198.51.100.1"))).isEqualTo("203.0.113.7");
+    }
+
+    @Test
+    void forwardedHeaderIsIgnoredWhenNotConfigured() {
+        LoginThrottle throttle = throttle("", "10.0.0.0/8");
+
+        assertThat(throttle.clientIp(request("10.0.0.5", "198.51.100.1"))).isEqualTo("10.0.0.5");
+    }
+
+    @Test
+    void rightmostUntrustedHopIsClient() {
+        LoginThrottle throttle = throttle(XFF, "10.0.0.0/8");
+
+        //левые адреса клиент может подставить сам
+        assertThat(throttle.clientIp(request("10.0.0.5", "1.1.1.1, 198.51.100.1, 10.0.0.9")))
+                .isEqualTo("198.51.100.1");
+    }
+
+    @Test
+    void garbageHopStopsTheWalk() {
+        LoginThrottle throttle = throttle(XFF, "10.0.0.0/8");
+
+        assertThat(throttle.clientIp(request("10.0.0.5", "198.51.100.1, localhost"))).isEqualTo("10.0.0.5");
+    }
+
+    @Test
+    void usernameLimitIsPerClientIp() {
+        LoginThrottle throttle = throttle("", "");
+
+        StepVerifier.create(throttle.acquire("proselyte", "198.51.100.1")).verifyComplete();
+        StepVerifier.create(throttle.acquire("Proselyte", "198.51.100.1"))
+                .verifyError(TooManyRequestsException.class);
+        //с другого адреса пользователь по-прежнему может войти
+        StepVerifier.create(throttle.acquire("proselyte", "203.0.113.7")).verifyComplete();
+    }
+
+    @Test
+    void usernameAnyIpLimitCapsDistributedAttempts() {
+        LoginThrottle throttle = throttle("", "");
+
+        StepVerifier.create(throttle.acquire("proselyte", "198.51.100.1")).verifyComplete();
+        StepVerifier.create(throttle.acquire("proselyte", "198.51.100.2")).verifyComplete();
+        StepVerifier.create(throttle.acquire("proselyte", "198.51.100.3"))
+                .verifyError(TooManyRequestsException.class);
+    }
+
+    /**
+     * Лимиты: 1 попытка на username + IP, 2 на username, 10 на IP, восполнение - одна в минуту.
+     */
+    private static LoginThrottle throttle(String forwardedHeader, String trustedProxies) {
+        return new LoginThrottle(true, 1, 1, 2, 1, 10, 1, forwardedHeader,
+                trustedProxies.isEmpty() ? new String[0] : trustedProxies.split(","), 1000, 4);
+    }
+
+    private static MockServerHttpRequest request(String remoteIp, String forwardedFor) {
+        return MockServerHttpRequest.post("/api/v1/auth/login")
+                .remoteAddress(new InetSocketAddress(remoteIp, 443))
+                .header(XFF, forwardedFor)
+                .build();
+    }
+}
@@ -0,0 +1,48 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+import net.proselyte.webfluxsecurity.config.JwtSigningProperties;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Ключи для тестов токенов: общий секрет HS256 и ключ ES256, созданный на время теста.
+ */
+final class TestKeys {
+
+    static final String SECRET = "b5f59337a612a2a7dc07328f3e7d1a04722967c7f06df20a499a7d3f91ff2a7e";
+
+    private TestKeys() {
+    }
+
+    static JwtKeyRing hs256() {
+        return JwtKeyRing.hmac(SECRET);
+    }
+
+    /**
+     * ES256 с ключом "test", HS256 без kid тоже принимается (accept-hs256 по умолчанию).
+     */
+    static JwtKeyRing es256() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            KeyPair keyPair = generator.generateKeyPair();
+            JwtSigningProperties.Key key = new JwtSigningProperties.Key();
+            key.setKid("test");
+            key.setPrivateKey(Base64.getEncoder().encodeToString(keyPair.getPrivate().getEncoded()));
+            key.setPublicKey(Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()));
+            JwtSigningProperties signing = new JwtSigningProperties();
+            signing.setAlgorithm(SignatureAlgorithm.ES256);
+            signing.setKeys(List.of(key));
+            signing.setActiveKid("test");
+            return JwtKeyRing.from(signing, SECRET);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
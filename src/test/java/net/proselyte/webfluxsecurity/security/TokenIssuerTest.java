@@ -0,0 +1,139 @@
+package net.proselyte.webfluxsecurity.security;
+
+import io.jsonwebtoken.Claims;
+import net.proselyte.webfluxsecurity.entity.UserRole;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.Clock;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Токены TokenIssuer проверяются теми же путями, что и в проде: JwtHandler (jjwt)
+ * и быстрым HmacTokenCodec.
+ */
+class TokenIssuerTest {
+
+    private final Clock clock = Clock.systemUTC();
+
+    @ParameterizedTest
+    @ValueSource(strings = {"proselyte", "Алиса", "名前", "emoji-😀", "o\"brien", "back\\slash",
+            "tab\tand\nnewline", "lone-\uD83D"})
+    void hs256AccessTokenVerifiesWithJwtHandler(String username) {
+        JwtKeyRing keyRing = TestKeys.hs256();
+        String token = issuer(keyRing).issueAccess(42L, username, UserRole.ADMIN).getToken();
+
+        Claims claims = new JwtHandler(keyRing, clock).check(token).block().claims;
+
+        assertThat(claims.getSubject()).isEqualTo("42");
+        assertThat(claims.get("username", String.class)).isEqualTo(expectedUsername(username));
+        assertThat(claims.get("role", String.class)).isEqualTo("ADMIN");
+        assertThat(claims.getIssuer()).isEqualTo("proselyte");
+        assertThat(claims.getId()).isNotBlank();
+        assertThat(TokenType.of(claims)).isEqualTo(TokenType.ACCESS);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"proselyte", "Алиса", "名前", "emoji-😀"})
+    void hs256AccessTokenTakesFastPath(String username) {
+        JwtKeyRing keyRing = TestKeys.hs256();
+        String token = issuer(keyRing).issueAccess(42L, username, UserRole.USER).getToken();
+
+        HmacTokenCodec.DecodedToken decoded = new HmacTokenCodec(keyRing.getHmacKey(), clock).decode(token);
+
+        assertThat(decoded).isNotNull();
+        assertThat(decoded.type()).isEqualTo(TokenType.ACCESS);
+        CustomPrincipal principal = (CustomPrincipal) decoded.authentication().getPrincipal();
+        assertThat(principal.getId()).isEqualTo(42L);
+        assertThat(principal.getName()).isEqualTo(username);
+        assertThat(decoded.authentication().getAuthorities())
+                .extracting(Object::toString)
+                .containsExactly("USER");
+    }
+
+    @Test
+    void hs256UsernameWithEscapesFallsBackToJwtHandler() {
+        JwtKeyRing keyRing = TestKeys.hs256();
+        String token = issuer(keyRing).issueAccess(42L, "o\"brien", UserRole.USER).getToken();
+
+        assertThat(new HmacTokenCodec(keyRing.getHmacKey(), clock).decode(token)).isNull();
+        assertThat(new JwtHandler(keyRing, clock).check(token).block().claims.get("username", String.class))
+                .isEqualTo("o\"brien");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"proselyte", "Алиса", "o\"brien", "emoji-😀"})
+    void es256AccessTokenVerifiesWithJwtHandler(String username) {
+        JwtKeyRing keyRing = TestKeys.es256();
+        String token = issuer(keyRing).issueAccess(7L, username, UserRole.USER).getToken();
+
+        assertThat(header(token)).isEqualTo("{\"alg\":\"ES256\",\"kid\":\"test\"}");
+        Claims claims = new JwtHandler(keyRing, clock).check(token).block().claims;
+        assertThat(claims.getSubject()).isEqualTo("7");
+        assertThat(claims.get("username", String.class)).isEqualTo(username);
+        //ES256 быстрый путь HS256 не проходит, его проверяет JwtHandler
+        assertThat(new HmacTokenCodec(keyRing.getHmacKey(), clock).decode(token)).isNull();
+    }
+
+    @Test
+    void es256SignatureFromAnotherKeyIsRejected() {
+        String token = issuer(TestKeys.es256()).issueAccess(7L, "proselyte", UserRole.USER).getToken();
+
+        assertThat(new JwtHandler(TestKeys.es256(), clock).check(token)
+                .map(result -> "accepted")
+                .onErrorReturn("rejected")
+                .block()).isEqualTo("rejected");
+    }
+
+    @Test
+    void pairHasRefreshTokenOfRefreshType() {
+        JwtKeyRing keyRing = TestKeys.hs256();
+        TokenDetails pair = issuer(keyRing).issuePair(42L, "proselyte", UserRole.USER);
+
+        Claims refresh = new JwtHandler(keyRing, clock).check(pair.getRefreshToken()).block().claims;
+        assertThat(pair.getUserId()).isEqualTo(42L);
+        assertThat(TokenType.of(refresh)).isEqualTo(TokenType.REFRESH);
+        assertThat(refresh.getSubject()).isEqualTo("42");
+        assertThat(refresh.get("role")).isNull();
+        assertThat(refresh.getExpiration()).isEqualTo(pair.getRefreshExpiresAt());
+        //без роли быстрый путь токен не разбирает - refresh проверяет JwtHandler
+        assertThat(new HmacTokenCodec(keyRing.getHmacKey(), clock).decode(pair.getRefreshToken())).isNull();
+    }
+
+    @Test
+    void batchTokensHaveUniqueJtiAndUserIds() {
+        JwtKeyRing keyRing = TestKeys.es256();
+        JwtHandler jwtHandler = new JwtHandler(keyRing, clock);
+        List<TokenDetails> tokens = issuer(keyRing).issueAccess(List.of(
+                new TokenSubject(1L, "one", UserRole.USER),
+                new TokenSubject(2L, "two", UserRole.ADMIN),
+                new TokenSubject(3L, "три", UserRole.USER)));
+
+        assertThat(tokens).extracting(TokenDetails::getUserId).containsExactly(1L, 2L, 3L);
+        Set<String> jtis = tokens.stream()
+                .map(token -> jwtHandler.check(token.getToken()).block().claims.getId())
+                .collect(Collectors.toSet());
+        assertThat(jtis).hasSize(3);
+    }
+
+    private static TokenIssuer issuer(JwtKeyRing keyRing) {
+        return new TokenIssuer(keyRing, Clock.systemUTC(), "proselyte", 900, 1209600);
+    }
+
+    private static String header(String token) {
+        return new String(Base64.getUrlDecoder().decode(token.substring(0, token.indexOf('.'))));
+    }
+
+    /**
+     * Одиночный суррогат не кодируется в UTF-8 - как String.getBytes, пишется '?'.
+     */
+    private static String expectedUsername(String username) {
+        return username.equals("lone-\uD83D") ? "lone-?" : username;
+    }
+}